@@ -0,0 +1,179 @@
+package eu.europeana.downloads;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of OAI-PMH requests that are in flight at the same time and adapts that limit to the
+ * behaviour of the server (additive increase, multiplicative decrease) :
+ *   a request that is answered within the latency target raises the limit by 1/limit, so roughly by one
+ *   for every 'limit' requests
+ *   a slow request lowers the limit by 10%, a server error or timeout halves it
+ *   a 503 with Retry-After halves the limit and holds back all new requests until the server is ready again
+ *
+ * The limit is lowered at most once per second, so a burst of failures of requests that were started
+ * at the same time is counted as one overload signal.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final Logger LOG = LogManager.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    private static final double SLOW_DECREASE_FACTOR = 0.9;
+    private static final double ERROR_DECREASE_FACTOR = 0.5;
+    private static final long MIN_DECREASE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTarget;
+
+    private double limit;
+    private int peakLimit;
+    private int inFlight;
+    private long pausedUntil;
+    private long lastDecrease;
+    private long decreases;
+    private long pauses;
+
+    /**
+     * @param minLimit      minimum number of requests in flight
+     * @param maxLimit      maximum number of requests in flight
+     * @param latencyTarget time in ms within which a page should be received, slower pages lower the limit
+     */
+    public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, long latencyTarget) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTarget = latencyTarget;
+        this.limit = this.minLimit + (this.maxLimit - this.minLimit) / 2D;
+        this.peakLimit = (int) limit;
+        LOG.info("Adaptive concurrency between {} and {} requests, starting with {}. Latency target {} ms",
+                this.minLimit, this.maxLimit, (int) limit, latencyTarget);
+    }
+
+    /**
+     * Waits until a request may be sent
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long pause = pausedUntil - System.currentTimeMillis();
+                if (pause > 0) {
+                    slotAvailable.await(pause, TimeUnit.MILLISECONDS);
+                } else if (inFlight >= (int) limit) {
+                    slotAvailable.await();
+                } else {
+                    break;
+                }
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A page was received successfully
+     *
+     * @param latency time in ms to receive the page
+     */
+    public void onSuccess(long latency) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (latency > latencyTarget) {
+                decrease(SLOW_DECREASE_FACTOR, "slow response of " + latency + " ms");
+            } else {
+                limit = Math.min(maxLimit, limit + 1D / limit);
+                peakLimit = Math.max(peakLimit, (int) limit);
+            }
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The server failed to answer the request (server error or timeout)
+     *
+     * @param retryAfter time in ms the server asked us to wait before sending new requests, -1 if not specified
+     */
+    public void onOverload(long retryAfter) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (retryAfter >= 0) {
+                long until = System.currentTimeMillis() + retryAfter;
+                if (until > pausedUntil) {
+                    pausedUntil = until;
+                    pauses++;
+                    LOG.warn("Server asked to retry after {} ms, pausing all requests", retryAfter);
+                }
+            }
+            decrease(ERROR_DECREASE_FACTOR, retryAfter >= 0 ? "server unavailable" : "server error");
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The request failed for a reason that doesn't tell anything about the load of the server
+     */
+    public void onIgnore() {
+        lock.lock();
+        try {
+            inFlight--;
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(double factor, String reason) {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease < MIN_DECREASE_INTERVAL) {
+            return;
+        }
+        lastDecrease = now;
+        int old = (int) limit;
+        limit = Math.max(minLimit, limit * factor);
+        decreases++;
+        LOG.info("Lowered concurrency limit from {} to {} because of {}", old, (int) limit, reason);
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPeakLimit() {
+        lock.lock();
+        try {
+            return peakLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("current limit %d, peak limit %d (range %d-%d), %d decreases, %d retry-after pauses",
+                    (int) limit, peakLimit, minLimit, maxLimit, decreases, pauses);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -10,8 +10,14 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -26,6 +32,9 @@ public class CheckSumGenerator extends BaseQuery implements OAIPMHQuery {
     @Value("#{'${zips-folder:${sets-folder:}}'}")
     private String zipsLocation;
 
+    @Value("${checksum-threads}")
+    private int threads;
+
     @Override
     public String getVerbName() {
         return Constants.CHECKSUM_VERB;
@@ -34,31 +43,69 @@ public class CheckSumGenerator extends BaseQuery implements OAIPMHQuery {
     @Override
     public void execute(OAIPMHServiceClient oaipmhServer) {
         zipsLocation = zipsLocation.isEmpty() ? directoryLocation : zipsLocation;
-        LOG.info("Generating CheckSum for the XML files ");
-        generateCheckSum(SetsUtility.getFolderName(zipsLocation, Constants.XML_FILE), SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE));
-        LOG.info("Generating CheckSum for the TTL files ");
-        generateCheckSum(SetsUtility.getFolderName(zipsLocation, Constants.TTL_FILE), SetsUtility.getFolderName(directoryLocation, Constants.TTL_FILE));
+        int workers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        LOG.info("Generating CheckSum with {} threads", workers);
+        try (ExecutorService executor = Executors.newFixedThreadPool(workers)) {
+            LOG.info("Generating CheckSum for the XML files ");
+            generateCheckSum(executor, SetsUtility.getFolderName(zipsLocation, Constants.XML_FILE), SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE));
+            LOG.info("Generating CheckSum for the TTL files ");
+            generateCheckSum(executor, SetsUtility.getFolderName(zipsLocation, Constants.TTL_FILE), SetsUtility.getFolderName(directoryLocation, Constants.TTL_FILE));
+        }
     }
 
     /**
-     * generates checksum for the zips files present in the directory
+     * generates checksum for the zips files present in the directory, the zips are read at the same time
      *
+     * @param executor     threads that read the zips
      * @param zipsPath     directory location for the zips file
      * @param checkSumPath directory location for where the checksum files will be generated
      */
-    private void generateCheckSum(String zipsPath, String checkSumPath) {
-        List<String> zips = getZipFilesWithoutCheckSum(zipsPath);
+    private void generateCheckSum(ExecutorService executor, String zipsPath, String checkSumPath) {
+        List<String> zips = getZipFilesWithoutCheckSum(zipsPath, checkSumPath);
         if (zips.isEmpty()) {
             LOG.info("No zips are present at location \"{}\" OR the \"{}\" directory does not exist.", zipsPath, zipsPath);
             LOG.info(" NO CheckSum are Generated");
         } else {
-            LOG.info("Missing Checksum for Zips {} ", zips);
+            LOG.info("Missing Checksum for {} Zips {} ", zips.size(), zips);
+            long start = System.currentTimeMillis();
+            List<Future<Long>> results = new ArrayList<>();
             for (String zipFile : zips) {
-                LOG.info("Generating CheckSum for zip {} ", zipFile);
                 String extension = Constants.PATH_SEPERATOR + zipFile;
-                ZipUtility.createMD5SumFile(zipsPath + extension, checkSumPath + extension);
+                // the size of the zip, -1 if its checksum is not written
+                results.add(executor.submit(() -> {
+                    LOG.debug("Generating CheckSum for zip {} ", zipFile);
+                    if (!ZipUtility.createMD5SumFile(zipsPath + extension, checkSumPath + extension)) {
+                        return -1L;
+                    }
+                    return new File(zipsPath + extension).length();
+                }));
+            }
+            long bytes = 0;
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < zips.size(); i++) {
+                try {
+                    long size = results.get(i).get();
+                    if (size < 0) {
+                        failed.add(zips.get(i));
+                    } else {
+                        bytes += size;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOG.error("Interrupted while generating the CheckSum", e);
+                    return;
+                } catch (ExecutionException e) {
+                    LOG.error("Error generating the CheckSum for zip {}", zips.get(i), e);
+                    failed.add(zips.get(i));
+                }
+            }
+            long time = Math.max(1, System.currentTimeMillis() - start);
+            LOG.info("Generated CheckSum for {} files, {} in {} ({} MB/s)", zips.size() - failed.size(),
+                    TransportStats.toMegaBytes(bytes), ProgressLogger.getDurationText(time),
+                    String.format("%.1f", bytes * 1000D / time / (1024D * 1024D)));
+            if (!failed.isEmpty()) {
+                LOG.error("Unable to generate the CheckSum for {} zips {}", failed.size(), failed);
             }
-            LOG.info("Generated CheckSum for {} files ", zips.size());
         }
     }
 
@@ -85,12 +132,13 @@ public class CheckSumGenerator extends BaseQuery implements OAIPMHQuery {
      * @param location location of the directory
      * @return list of zip files
      */
-    private List<String> getZipFilesWithoutCheckSum(String location) {
+    private List<String> getZipFilesWithoutCheckSum(String location, String checkSumLocation) {
         if (Files.exists(Paths.get(location))) {
+            Set<String> checksums = getCheckSumFiles(checkSumLocation);
             List<String> zips = new ArrayList<>();
-            List<File> files = Arrays.asList(new File(location).listFiles());
-            for (File file : files) {
-                if (file.getName().endsWith(Constants.ZIP_EXTENSION) && !checksumExists(files, file.getName())) {
+            for (File file : new File(location).listFiles()) {
+                if (file.getName().endsWith(Constants.ZIP_EXTENSION) &&
+                        !checksums.contains(StringUtils.lowerCase(file.getName() + Constants.MD5_EXTENSION, Locale.ROOT))) {
                     zips.add(file.getName());
                 }
             }
@@ -100,13 +148,20 @@ public class CheckSumGenerator extends BaseQuery implements OAIPMHQuery {
         return new ArrayList<>();
     }
 
-    private boolean checksumExists(List<File> fileList, String fileName) {
-        for (File checksum : fileList) {
-            if (checksum.getName().endsWith(Constants.MD5_EXTENSION) &&
-                    StringUtils.equalsIgnoreCase(checksum.getName(), fileName + Constants.MD5_EXTENSION)) {
-                return true;
+    /**
+     * @return lower case names of the md5 files in the directory, the checksum of a zip is looked up by its name
+     * instead of going through all files for every zip
+     */
+    private Set<String> getCheckSumFiles(String location) {
+        Set<String> checksums = new HashSet<>();
+        File[] files = new File(location).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(Constants.MD5_EXTENSION)) {
+                    checksums.add(StringUtils.lowerCase(file.getName(), Locale.ROOT));
+                }
             }
         }
-        return false;
+        return checksums;
     }
 }
@@ -8,9 +8,12 @@ public class Constants {
     public static final String LIST_RECORDS_VERB        = "ListRecords";
     public static final String LIST_SET_VERB            = "ListSets";
     public static final String CHECKSUM_VERB            = "CheckSum";
+    public static final String DERIVE_TTL_VERB          = "DeriveTTL";
 
     // Zip constants
     public static final String ZIP_EXTENSION            = ".zip";
+    public static final String PARTIAL_EXTENSION        = ".partial";
+    public static final String CHANGES_EXTENSION        = ".changes";
     public static final String PATH_SEPERATOR           = "/";
     public static final String XML_EXTENSION            = ".xml";
     public static final String TTL_EXTENSION            = ".ttl";
@@ -24,6 +27,8 @@ public class Constants {
     public static final String RECORD_TAG               = "record";
     public static final String IDENTIFIER_TAG           = "identifier";
     public static final String SETSPEC_TAG              = "setSpec";
+    public static final String SET_TAG                  = "set";
+    public static final String SETNAME_TAG              = "setName";
     public static final String DATESTAMP_TAG            = "datestamp";
     public static final String RESUMPTIONTOKEN_TAG      = "resumptionToken";
     public static final String COMPLETELISTSIZE_TAG     = "completeListSize";
@@ -42,6 +47,7 @@ public class Constants {
 
     // MD5 Constants
     public static final String MD5_EXTENSION            = ".md5sum";
+    public static final String SHA256_EXTENSION         = ".sha256sum";
     public static final String CHECKSUM_EXTENSION       = ZIP_EXTENSION + MD5_EXTENSION;
 
     // File format
@@ -50,6 +56,8 @@ public class Constants {
 
     public static final String HARVEST_DATE_FORMAT      = "yyyy-MM-dd'T'HH:mm:ss'Z'";
     public static final String HARVEST_DATE_FILENAME    = "lastHarvestDate.txt";
+    public static final String HARVEST_JOURNAL_FILENAME = "harvestJournal.txt";
+    public static final String SET_HARVEST_TIMES_FILENAME = "setHarvestTimes.csv";
 
 
     // CSV File Constants
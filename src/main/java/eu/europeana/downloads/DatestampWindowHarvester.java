@@ -0,0 +1,268 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.ListIdentifiers;
+import eu.europeana.oaipmh.model.ListRecords;
+import eu.europeana.oaipmh.model.Record;
+import eu.europeana.oaipmh.model.response.ListIdentifiersResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.OutputStreamWriter;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Harvests one large set concurrently in datestamp windows. Resumption tokens force the pages of a
+ * ListRecords request to be fetched one after the other, but requests with disjoint from/until windows
+ * can run at the same time.
+ *
+ * The windows are created by splitting the datestamp range in halves until every window holds about
+ * 1/N of the records of the set. The size of a window is probed with a ListIdentifiers request.
+ * All windows write into the same XML and TTL zips.
+ */
+class DatestampWindowHarvester extends BaseQuery {
+
+    private static final Logger LOG = LogManager.getLogger(DatestampWindowHarvester.class);
+
+    // windows up to 1.5 times the target size are not split any further
+    private static final double WINDOW_SIZE_TOLERANCE = 1.5;
+
+    // maximum number of ListIdentifiers requests to split the range, per window
+    private static final int MAX_PROBES_PER_WINDOW = 4;
+
+    private final OAIPMHServiceClient oaipmhServer;
+    private final String metadataPrefix;
+    private final String setIdentifier;
+    private final int prefetchDepth;
+    private final int windows;
+    private final ProgressLogger logger;
+
+    // a lock instead of synchronized, so the virtual threads of the windows are not pinned while writing
+    private final ReentrantLock zipLock = new ReentrantLock();
+
+    private int recordsDownloaded;
+    private long recordsHarvested;
+
+    // the window that starts at openFrom is requested without from and the window that ends at openUntil without
+    // until, so no records of the set are outside the windows
+    private Instant openFrom;
+    private Instant openUntil;
+    private Instant harvestFrom;
+
+    record Window(Instant from, Instant until, long size) {
+    }
+
+    /**
+     * @param windows number of windows to harvest at the same time
+     * @param logger  progress logger of the set
+     */
+    DatestampWindowHarvester(OAIPMHServiceClient oaipmhServer, String metadataPrefix, String setIdentifier,
+                             int prefetchDepth, int windows, ProgressLogger logger) {
+        this.oaipmhServer = oaipmhServer;
+        this.metadataPrefix = metadataPrefix;
+        this.setIdentifier = setIdentifier;
+        this.prefetchDepth = prefetchDepth;
+        this.windows = windows;
+        this.logger = logger;
+    }
+
+    /**
+     * Harvests all records of the set since from into the zips. The last window has no until date, so records
+     * with a datestamp after the current time (of a server with a clock that is ahead) are harvested as well.
+     *
+     * @param from     start of the datestamp range, null to harvest all records of the set
+     * @param earliest start of the range that is split into windows when from is null, the first window has no
+     *                 from date then, so records with an earlier datestamp are harvested as well
+     * @param size     number of records of the set
+     */
+    void harvest(Instant from, Instant earliest, long size, ZipOutputStream xmlZout, OutputStreamWriter xmlWriter,
+                 ZipOutputStream ttlZout, OutputStreamWriter ttlWriter) {
+        Instant start = from != null ? from : earliest;
+        Instant until = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        harvestFrom = start;
+        openFrom = from != null ? null : start;
+        openUntil = until;
+        List<Window> datestampWindows = split(new Window(start, until, size));
+        LOG.info("Harvesting set {} with {} records in {} datestamp windows", setIdentifier, size, datestampWindows.size());
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             SetHarvestScope<Long> scope = new SetHarvestScope<>(executor, 0)) {
+            for (Window window : datestampWindows) {
+                scope.fork(() -> harvestWindow(window, xmlZout, xmlWriter, ttlZout, ttlWriter));
+            }
+            scope.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while harvesting set " + setIdentifier, e);
+        } catch (ExecutionException e) {
+            // keep the exception type, so server errors are retried like any other failed set
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Error harvesting set " + setIdentifier, e.getCause());
+        }
+    }
+
+    /**
+     * Splits the window in halves until all windows are small enough or the maximum number of probes is reached
+     */
+    List<Window> split(Window range) {
+        long target = Math.max(1, range.size() / windows);
+        int probes = windows * MAX_PROBES_PER_WINDOW;
+        Deque<Window> todo = new ArrayDeque<>();
+        List<Window> result = new ArrayList<>();
+        todo.add(range);
+        while (!todo.isEmpty()) {
+            Window window = todo.poll();
+            long seconds = ChronoUnit.SECONDS.between(window.from(), window.until());
+            if (window.size() <= target * WINDOW_SIZE_TOLERANCE || seconds < 1 || probes <= 0) {
+                result.add(window);
+                continue;
+            }
+            // from and until are inclusive, so the second half starts one second after the first one ends
+            Instant middle = window.from().plusSeconds(seconds / 2);
+            Long leftSize = probeSize(window.from(), middle);
+            probes--;
+            if (leftSize == null) {
+                result.add(window);
+                continue;
+            }
+            long rightSize = Math.max(0, window.size() - leftSize);
+            if (leftSize > 0) {
+                todo.add(new Window(window.from(), middle, leftSize));
+            }
+            // the size of the second half is not probed, so it is harvested even if it looks empty
+            todo.add(new Window(middle.plusSeconds(1), window.until(), rightSize));
+        }
+        result.sort(Comparator.comparing(Window::size).reversed());
+        return result;
+    }
+
+    private long harvestWindow(Window window, ZipOutputStream xmlZout, OutputStreamWriter xmlWriter,
+                               ZipOutputStream ttlZout, OutputStreamWriter ttlWriter) {
+        String request = getRequest(Constants.LIST_RECORDS_VERB, window.from(), window.until());
+        ListRecords page = oaipmhServer.getListRecordRequest(request).getListRecords();
+        if (page == null) {
+            // no records match the window
+            return 0;
+        }
+        long records = 0;
+        try (RecordIterator iterator = new RecordIterator(oaipmhServer,
+                token -> getBaseRequest(oaipmhServer.getOaipmhServer(), Constants.LIST_RECORDS_VERB) +
+                        String.format(RESUMPTION_TOKEN_PARAMETER, token),
+                page, prefetchDepth, setIdentifier, this::pageWritten)) {
+            while (iterator.hasNext()) {
+                write(iterator.next(), xmlZout, xmlWriter, ttlZout, ttlWriter);
+                records++;
+            }
+        }
+        LOG.debug("Harvested {} records of set {} from {} until {}", records, setIdentifier, window.from(), window.until());
+        return records;
+    }
+
+    private void write(Record record, ZipOutputStream xmlZout, OutputStreamWriter xmlWriter,
+                       ZipOutputStream ttlZout, OutputStreamWriter ttlWriter) {
+        String metadata = record.getMetadata().getMetadata();
+        // convert outside the lock, so the windows convert their records at the same time
+        String turtle = ZipUtility.dataToWriteInZip(metadata, Constants.TTL_FILE);
+        zipLock.lock();
+        try {
+            ZipUtility.writeInZip(xmlZout, xmlWriter, record, Constants.XML_FILE);
+            ZipUtility.writeInZip(ttlZout, ttlWriter, ZipUtility.getEntryName(record, Constants.TTL_FILE), turtle);
+            recordsDownloaded++;
+        } finally {
+            zipLock.unlock();
+        }
+    }
+
+    private void pageWritten(ListRecords page) {
+        zipLock.lock();
+        try {
+            recordsHarvested += page.getRecords().size();
+            logger.logProgress(recordsHarvested);
+        } finally {
+            zipLock.unlock();
+        }
+    }
+
+    /**
+     * @return the current number of records of the harvested datestamp range, null if the size can't be determined
+     */
+    Long probeSize() {
+        return probeSize(harvestFrom, openUntil);
+    }
+
+    /**
+     * @return the number of records in the window, null if the size can't be determined
+     */
+    private Long probeSize(Instant from, Instant until) {
+        String request = getRequest(Constants.LIST_IDENTIFIERS_VERB, from, until);
+        try {
+            ListIdentifiersResponse response = oaipmhServer.getListIdentifiersRequest(request);
+            if (response == null) {
+                return null;
+            }
+            ListIdentifiers listIdentifiers = response.getListIdentifiers();
+            if (listIdentifiers == null) {
+                // no records match the window
+                return 0L;
+            }
+            if (listIdentifiers.getResumptionToken() != null) {
+                return listIdentifiers.getResumptionToken().getCompleteListSize();
+            }
+            return listIdentifiers.getHeaders() == null ? 0L : listIdentifiers.getHeaders().size();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to probe the size of set {} from {} until {} : {}", setIdentifier, from, until, e.getMessage());
+            return null;
+        }
+    }
+
+    private String getRequest(String verb, Instant from, Instant until) {
+        return getBaseRequest(oaipmhServer.getOaipmhServer(), verb) +
+                String.format(METADATA_PREFIX_PARAMETER, metadataPrefix) +
+                (from.equals(openFrom) ? "" : String.format(FROM_PARAMETER, format(from))) +
+                (until.equals(openUntil) ? "" : String.format(UNTIL_PARAMETER, format(until))) +
+                String.format(SET_PARAMETER, setIdentifier);
+    }
+
+    static String format(Instant datestamp) {
+        return DateTimeFormatter.ISO_INSTANT.format(datestamp.truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    /**
+     * @param datestamp OAI-PMH datestamp, a date or a date and time in UTC
+     * @return the datestamp or null if it is empty
+     */
+    static Instant parse(String datestamp) {
+        if (StringUtils.isBlank(datestamp)) {
+            return null;
+        }
+        String value = datestamp.trim();
+        if (value.length() == 10) {
+            return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+        }
+        return Instant.parse(value);
+    }
+
+    int getRecordsDownloaded() {
+        return recordsDownloaded;
+    }
+
+    long getRecordsHarvested() {
+        return recordsHarvested;
+    }
+}
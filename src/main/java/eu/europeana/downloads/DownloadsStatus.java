@@ -11,6 +11,10 @@ public class DownloadsStatus {
     private Date startTime;
     private String timeElapsed;
     private String retriedSetsStatus;
+    private long wireBytes;
+    private long decodedBytes;
+    private long turtleCacheHits;
+    private long turtleCacheMisses;
     Map<String, Long> setsRecordCountMap = new HashMap<>();
 
     Map<String,ZipFileStatus> setsFileStatusMap = new HashMap<>();
@@ -67,6 +71,38 @@ public class DownloadsStatus {
         this.retriedSetsStatus = retriedSetsStatus;
     }
 
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public void setWireBytes(long wireBytes) {
+        this.wireBytes = wireBytes;
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    public void setDecodedBytes(long decodedBytes) {
+        this.decodedBytes = decodedBytes;
+    }
+
+    public long getTurtleCacheHits() {
+        return turtleCacheHits;
+    }
+
+    public void setTurtleCacheHits(long turtleCacheHits) {
+        this.turtleCacheHits = turtleCacheHits;
+    }
+
+    public long getTurtleCacheMisses() {
+        return turtleCacheMisses;
+    }
+
+    public void setTurtleCacheMisses(long turtleCacheMisses) {
+        this.turtleCacheMisses = turtleCacheMisses;
+    }
+
     public Map<String, Long> getSetsRecordCountMap() {
         return setsRecordCountMap;
     }
@@ -102,6 +138,10 @@ public class DownloadsStatus {
             ", startTime=" + startTime +
             ", timeElapsed='" + timeElapsed + '\'' +
             ", retriedSetsStatus='" + retriedSetsStatus + '\'' +
+            ", wireBytes=" + wireBytes +
+            ", decodedBytes=" + decodedBytes +
+            ", turtleCacheHits=" + turtleCacheHits +
+            ", turtleCacheMisses=" + turtleCacheMisses +
             ", setsRecordCountMap=" + setsRecordCountMap +
             ", setsFileStatusMap=" + setsFileStatusMap +
             '}';
@@ -0,0 +1,221 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.ResumptionToken;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of a ListRecords run in the sets folder, so a run that was killed can continue where it
+ * stopped. The journal has a line for the start of the run with its sets, the start of every set, every page
+ * of a set that is written in the zips, the zips of a set that are renamed to their final name and the md5
+ * files of a set that are written. The last line is written when the run is finished.
+ *
+ * When the journal of the last run has no end, the next run harvests the same sets with the same start date,
+ * skips the sets that were finished and continues the other sets from their last page.
+ */
+class HarvestJournal implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(HarvestJournal.class);
+
+    private static final String SEPARATOR = "\t";
+
+    private static final String RUN = "RUN";
+    private static final String SET_STARTED = "SET";
+    private static final String PAGE_WRITTEN = "PAGE";
+    private static final String ZIPS_WRITTEN = "ZIPS";
+    private static final String MD5_WRITTEN = "MD5";
+    private static final String RUN_FINISHED = "END";
+
+    private final FileOutputStream file;
+    private final BufferedWriter writer;
+    private final UnfinishedRun continued;
+
+    /**
+     * Run of the journal that was not finished
+     *
+     * @param start          start time of the run
+     * @param harvestSets    configured sets of the run
+     * @param selectiveUpdate true if the sets of the run are the sets changed since the last harvest
+     * @param sets           sets of the run
+     * @param setsWithZips   sets of the run that had zips when the run started, null if the journal doesn't have them
+     * @param finished       sets with their zips and md5 files written
+     * @param zipsWritten    sets with their zips written, but not their md5 files
+     * @param checkpoints    last page written of the sets that were not finished
+     */
+    record UnfinishedRun(long start, String harvestSets, boolean selectiveUpdate, List<String> sets,
+                         Set<String> setsWithZips, Set<String> finished, Set<String> zipsWritten, Map<String, SetHarvestCheckpoint> checkpoints) {
+    }
+
+    /**
+     * @param directoryLocation sets folder
+     * @param continued         the run that is continued, null to start a new journal
+     */
+    HarvestJournal(String directoryLocation, UnfinishedRun continued) throws IOException {
+        this.continued = continued;
+        this.file = new FileOutputStream(getPath(directoryLocation).toFile(), continued != null);
+        this.writer = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param harvestSets configured sets, the run is only continued with the same configuration
+     * @return the last run of the journal if it was not finished, otherwise null
+     */
+    static UnfinishedRun readUnfinishedRun(String directoryLocation, String harvestSets) {
+        List<String> lines;
+        try {
+            String journal = Files.readString(getPath(directoryLocation), StandardCharsets.UTF_8);
+            lines = new ArrayList<>(journal.lines().toList());
+            // the last line is incomplete if the run was killed while it was written
+            if (!journal.endsWith("\n") && !lines.isEmpty()) {
+                lines.remove(lines.size() - 1);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.error("Error reading the harvest journal", e);
+            return null;
+        }
+        if (lines.isEmpty() || !lines.get(0).startsWith(RUN + SEPARATOR)) {
+            return null;
+        }
+        String[] run = lines.get(0).split(SEPARATOR, -1);
+        if (run.length < 5 || lines.get(lines.size() - 1).equals(RUN_FINISHED)) {
+            return null;
+        }
+        if (!StringUtils.equals(run[2], harvestSets)) {
+            LOG.warn("Not continuing the interrupted run of sets '{}', the configured sets are '{}'", run[2], harvestSets);
+            return null;
+        }
+        UnfinishedRun unfinished = new UnfinishedRun(Long.parseLong(run[1]), run[2], Boolean.parseBoolean(run[3]),
+                Arrays.asList(StringUtils.split(run[4], ',')),
+                run.length < 6 ? null : new HashSet<>(Arrays.asList(StringUtils.split(run[5], ','))),
+                new HashSet<>(), new HashSet<>(), new HashMap<>());
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(SEPARATOR, -1);
+            switch (fields[0]) {
+                case SET_STARTED -> {
+                    if (fields.length == 3) {
+                        unfinished.checkpoints().put(fields[1], new SetHarvestCheckpoint(fields[1], fields[2]));
+                        unfinished.zipsWritten().remove(fields[1]);
+                        unfinished.finished().remove(fields[1]);
+                    }
+                }
+                case PAGE_WRITTEN -> {
+                    SetHarvestCheckpoint checkpoint = unfinished.checkpoints().get(fields[1]);
+                    if (fields.length == 6 && checkpoint != null) {
+                        checkpoint.pageWritten(getToken(fields[2], fields[3]), Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+                    }
+                }
+                case ZIPS_WRITTEN -> {
+                    unfinished.checkpoints().remove(fields[1]);
+                    unfinished.zipsWritten().add(fields[1]);
+                }
+                case MD5_WRITTEN -> {
+                    unfinished.zipsWritten().remove(fields[1]);
+                    unfinished.finished().add(fields[1]);
+                }
+                default -> LOG.warn("Skipping line '{}' of the harvest journal", line);
+            }
+        }
+        return unfinished;
+    }
+
+    private static ResumptionToken getToken(String value, String expiration) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        ResumptionToken token = new ResumptionToken();
+        token.setValue(value);
+        if (!expiration.isEmpty()) {
+            token.setExpirationDate(new Date(Long.parseLong(expiration)));
+        }
+        return token;
+    }
+
+    private static Path getPath(String directoryLocation) {
+        return Paths.get(directoryLocation, Constants.HARVEST_JOURNAL_FILENAME);
+    }
+
+    /**
+     * @return the last page written of the set in the run that is continued, null to harvest the set from scratch
+     */
+    SetHarvestCheckpoint getCheckpoint(String setIdentifier) {
+        return continued == null ? null : continued.checkpoints().get(setIdentifier);
+    }
+
+    /**
+     * @param setsWithZips sets of the run that have zips of an earlier harvest, the zips of the sets that are
+     *                     finished are replaced when the run is continued
+     */
+    void runStarted(long start, String harvestSets, boolean selectiveUpdate, List<String> sets, Collection<String> setsWithZips) {
+        write(true, RUN, String.valueOf(start), harvestSets, String.valueOf(selectiveUpdate), String.join(",", sets),
+                String.join(",", setsWithZips));
+    }
+
+    void setStarted(String setIdentifier, String recordsTobeDownloaded) {
+        write(false, SET_STARTED, setIdentifier, recordsTobeDownloaded);
+    }
+
+    void pageWritten(SetHarvestCheckpoint checkpoint) {
+        ResumptionToken token = checkpoint.getResumptionToken();
+        String value = token == null || token.getValue() == null ? "" : token.getValue();
+        String expiration = token == null || token.getExpirationDate() == null ? "" : String.valueOf(token.getExpirationDate().getTime());
+        write(false, PAGE_WRITTEN, checkpoint.getSetIdentifier(), value, expiration,
+                String.valueOf(checkpoint.getRecordsDownloaded()), String.valueOf(checkpoint.getRecordsHarvested()));
+    }
+
+    void zipsWritten(String setIdentifier) {
+        write(true, ZIPS_WRITTEN, setIdentifier);
+    }
+
+    void md5Written(String setIdentifier) {
+        write(true, MD5_WRITTEN, setIdentifier);
+    }
+
+    void runFinished() {
+        write(true, RUN_FINISHED);
+    }
+
+    /**
+     * Appends a line to the journal. The lines of the pages are only flushed, the other lines are forced to
+     * the disk, so the journal never has a finished set of which the zips are not on the disk.
+     */
+    private synchronized void write(boolean sync, String... fields) {
+        try {
+            writer.write(String.join(SEPARATOR, fields));
+            writer.newLine();
+            writer.flush();
+            if (sync) {
+                file.getFD().sync();
+            }
+        } catch (IOException e) {
+            LOG.error("Error writing {} to the harvest journal", fields[0], e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -3,10 +3,9 @@ package eu.europeana.downloads;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.zip.ZipOutputStream;
@@ -94,8 +93,8 @@ public class ListIdentifierExecutor implements Callable<ListRecordsResult> {
         long start = System.currentTimeMillis();
         String zipName =  directoryLocation + Constants.PATH_SEPERATOR + setIdentifier + Constants.ZIP_EXTENSION;
 
-        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(new File(zipName)));
-             OutputStreamWriter writer = new OutputStreamWriter(zout)) {
+        try (ZipOutputStream zout = ZipUtility.openZip(zipName, false, Constants.XML_FILE);
+             OutputStreamWriter writer = new OutputStreamWriter(zout, StandardCharsets.UTF_8)) {
 
             for (String identifier : identifiers) {
                 try {
@@ -116,8 +115,7 @@ public class ListIdentifierExecutor implements Callable<ListRecordsResult> {
             LOG.error("Error creating zip file ", e);
             errors++;
         }
-        //create MD5Sum file for the Zip
-        ZipUtility.createMD5SumFile(zipName);
+        // the md5 file of the zip is written when the zip is closed
         return errors;
     }
 }
@@ -137,8 +137,7 @@ public class ListIdentifiersQuery extends BaseQuery implements OAIPMHQuery {
 
         // get all the sets in a list
         if (sets.isEmpty()) {
-            ListSetsQuery setsQuery = new ListSetsQuery(logProgressInterval);
-            setsFromListSets = setsQuery.getSets(oaipmhServer, null, null);
+            setsFromListSets = oaipmhServer.getSetCatalog().getSets();
         }
         LOG.info(" {} Sets to be executed by {} threads", setsFromListSets.size(), threads);
         List<Future<ListRecordsResult>> results = null;
@@ -185,7 +184,7 @@ public class ListIdentifiersQuery extends BaseQuery implements OAIPMHQuery {
 
         String request = getRequest(oaipmhServer.getOaipmhServer(), setName);
 
-        ListIdentifiersResponse response = (ListIdentifiersResponse) oaipmhServer.makeRequest(request, ListIdentifiersResponse.class);
+        ListIdentifiersResponse response = oaipmhServer.getListIdentifiersRequest(request);
         ListIdentifiers responseObject = response.getListIdentifiers();
         if (responseObject != null) {
             counter += responseObject.getHeaders().size();
@@ -199,7 +198,7 @@ public class ListIdentifiersQuery extends BaseQuery implements OAIPMHQuery {
 
             while (responseObject.getResumptionToken() != null) {
                 request = getResumptionRequest(oaipmhServer.getOaipmhServer(), responseObject.getResumptionToken().getValue());
-                response = (ListIdentifiersResponse) oaipmhServer.makeRequest(request, ListIdentifiersResponse.class);
+                response = oaipmhServer.getListIdentifiersRequest(request);
                 responseObject = response.getListIdentifiers();
                 if (responseObject == null) {
                     break;
@@ -0,0 +1,365 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.Header;
+import eu.europeana.oaipmh.model.ListRecords;
+import eu.europeana.oaipmh.model.Record;
+import eu.europeana.oaipmh.model.ResumptionToken;
+import eu.europeana.oaipmh.model.response.ListRecordsResponse;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a UTF-8 ListRecords page into its records without a full XML parser. Only the tags the harvest
+ * needs are located : record, header (identifier, datestamp and setSpec), metadata and resumptionToken.
+ * The '&lt;' characters are searched 8 bytes at a time (SWAR : SIMD within a register), the bytes in
+ * between are never decoded, except for the header values and the metadata.
+ *
+ * The metadata is the raw content between the metadata tags, the same as captured by
+ * {@link MetadataCapturingReader}. Anything the scanner doesn't expect (comments, CDATA, entities in the
+ * header, unknown elements, namespace prefixes, a truncated page) makes it give up, the page is then
+ * parsed with StAX.
+ */
+final class ListRecordsPageScanner {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LESS_THAN = ONES * '<';
+
+    private static final byte[] LIST_RECORDS = bytes("<" + Constants.LIST_RECORDS_VERB);
+    private static final byte[] LIST_RECORDS_END = bytes("</" + Constants.LIST_RECORDS_VERB + ">");
+    private static final byte[] RECORD = bytes(Constants.RECORD_TAG);
+    private static final byte[] RECORD_END = bytes("/" + Constants.RECORD_TAG);
+    private static final byte[] HEADER = bytes(Constants.HEADER_TAG);
+    private static final byte[] HEADER_END = bytes("/" + Constants.HEADER_TAG);
+    private static final byte[] IDENTIFIER = bytes(Constants.IDENTIFIER_TAG);
+    private static final byte[] DATESTAMP = bytes(Constants.DATESTAMP_TAG);
+    private static final byte[] SETSPEC = bytes(Constants.SETSPEC_TAG);
+    private static final byte[] METADATA = bytes(Constants.MEATADATA_TAG);
+    private static final byte[] METADATA_END = bytes("</" + Constants.MEATADATA_TAG + ">");
+    private static final byte[] RESUMPTIONTOKEN = bytes(Constants.RESUMPTIONTOKEN_TAG);
+
+    private final byte[] page;
+    private final int end;
+    private int pos;
+
+    private ListRecordsPageScanner(byte[] page, int end) {
+        this.page = page;
+        this.end = end;
+    }
+
+    /**
+     * @param page the UTF-8 bytes of the page
+     * @return the records of the page or null if the page has to be parsed with StAX
+     */
+    static ListRecordsResponse scan(byte[] page) {
+        int start = indexOf(page, LIST_RECORDS, 0, page.length);
+        int end = lastIndexOf(page, LIST_RECORDS_END);
+        if (start < 0 || end < start) {
+            return null;
+        }
+        try {
+            ListRecordsPageScanner scanner = new ListRecordsPageScanner(page, end);
+            scanner.pos = start + LIST_RECORDS.length;
+            return scanner.scanRecords();
+        } catch (ParseException | NumberFormatException e) {
+            // StAX fails in the same way, let it handle the error
+            return null;
+        }
+    }
+
+    private ListRecordsResponse scanRecords() throws ParseException {
+        if (!skipStartTag()) {
+            return null;
+        }
+        List<Record> records = new ArrayList<>();
+        Record record = null;
+        ResumptionToken resumptionToken = null;
+        int lt;
+        while ((lt = indexOfLessThan(page, pos, end)) >= 0) {
+            pos = lt + 1;
+            if (isTag(RECORD) && page[pos + RECORD.length] == '>' && record == null) {
+                record = new Record();
+                pos += RECORD.length + 1;
+            } else if (isTag(HEADER) && record != null && record.getHeader() == null) {
+                pos += HEADER.length;
+                Header header = scanHeader();
+                if (header == null) {
+                    return null;
+                }
+                record.setHeader(header);
+            } else if (isTag(METADATA) && record != null && record.getMetadata() == null) {
+                pos += METADATA.length;
+                if (!scanMetadata(record)) {
+                    return null;
+                }
+            } else if (isTag(RECORD_END) && page[pos + RECORD_END.length] == '>' && record != null) {
+                records.add(record);
+                record = null;
+                pos += RECORD_END.length + 1;
+            } else if (isTag(RESUMPTIONTOKEN) && record == null && resumptionToken == null) {
+                pos += RESUMPTIONTOKEN.length;
+                resumptionToken = scanResumptionToken();
+                if (resumptionToken == null) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (record != null || records.isEmpty()) {
+            return null;
+        }
+        ListRecords listRecords = new ListRecords();
+        listRecords.setRecords(records);
+        listRecords.setResumptionToken(resumptionToken);
+        ListRecordsResponse response = new ListRecordsResponse();
+        response.setListRecords(listRecords);
+        return response;
+    }
+
+    private Header scanHeader() throws ParseException {
+        // attributes (status="deleted") are ignored, like in the StAX parser
+        if (!skipStartTag() || page[pos - 2] == '/') {
+            return null;
+        }
+        Header header = new Header();
+        int lt;
+        while ((lt = indexOfLessThan(page, pos, end)) >= 0) {
+            pos = lt + 1;
+            if (isTag(HEADER_END) && page[pos + HEADER_END.length] == '>') {
+                pos += HEADER_END.length + 1;
+                return header;
+            }
+            if (isTag(IDENTIFIER)) {
+                header.setIdentifier(scanText(IDENTIFIER));
+            } else if (isTag(DATESTAMP)) {
+                String datestamp = scanText(DATESTAMP);
+                if (datestamp != null) {
+                    header.setDatestamp(XMLResponseParser.parseDate(datestamp));
+                }
+            } else if (isTag(SETSPEC)) {
+                header.setSetSpec(scanText(SETSPEC));
+            } else {
+                return null;
+            }
+            if (pos < 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the text of a header element, null (and pos -1) if it is not plain text
+     */
+    private String scanText(byte[] tag) {
+        pos += tag.length;
+        if (page[pos] != '>') {
+            pos = -1;
+            return null;
+        }
+        int from = pos + 1;
+        int lt = indexOfLessThan(page, from, end);
+        if (lt < 0 || page[lt + 1] != '/' || !regionMatches(lt + 2, tag) || page[lt + 2 + tag.length] != '>'
+                || indexOf(page, (byte) '&', from, lt) >= 0) {
+            pos = -1;
+            return null;
+        }
+        pos = lt + 3 + tag.length;
+        return new String(page, from, lt - from, StandardCharsets.UTF_8);
+    }
+
+    private boolean scanMetadata(Record record) {
+        // <metadata> or <metadata attributes..>, not <metadataSomething> or <metadata/>
+        if (page[pos] != '>' && !isWhitespace(page[pos])) {
+            return false;
+        }
+        if (!skipStartTag() || page[pos - 2] == '/') {
+            return false;
+        }
+        int metadataEnd = indexOf(page, METADATA_END, pos, end);
+        if (metadataEnd < 0) {
+            return false;
+        }
+        record.setMetadata(new PageMetadata(page, pos, metadataEnd - pos));
+        pos = metadataEnd + METADATA_END.length;
+        return true;
+    }
+
+    private ResumptionToken scanResumptionToken() throws ParseException {
+        ResumptionToken resumptionToken = new ResumptionToken();
+        while (true) {
+            while (pos < end && isWhitespace(page[pos])) {
+                pos++;
+            }
+            if (pos >= end) {
+                return null;
+            }
+            if (page[pos] == '/' && page[pos + 1] == '>') {
+                pos += 2;
+                resumptionToken.setValue("");
+                return resumptionToken;
+            }
+            if (page[pos] == '>') {
+                break;
+            }
+            if (!scanAttribute(resumptionToken)) {
+                return null;
+            }
+        }
+        int from = pos + 1;
+        int lt = indexOfLessThan(page, from, end);
+        if (lt < 0 || page[lt + 1] != '/' || !regionMatches(lt + 2, RESUMPTIONTOKEN)
+                || page[lt + 2 + RESUMPTIONTOKEN.length] != '>' || indexOf(page, (byte) '&', from, lt) >= 0) {
+            return null;
+        }
+        resumptionToken.setValue(new String(page, from, lt - from, StandardCharsets.UTF_8));
+        pos = lt + 3 + RESUMPTIONTOKEN.length;
+        return resumptionToken;
+    }
+
+    private boolean scanAttribute(ResumptionToken resumptionToken) throws ParseException {
+        int equals = indexOf(page, (byte) '=', pos, end);
+        if (equals < 0 || equals + 1 >= end) {
+            return false;
+        }
+        String name = new String(page, pos, equals - pos, StandardCharsets.UTF_8).trim();
+        byte quote = page[equals + 1];
+        if (quote != '"' && quote != '\'') {
+            return false;
+        }
+        int valueEnd = indexOf(page, quote, equals + 2, end);
+        if (valueEnd < 0 || indexOf(page, (byte) '&', equals + 2, valueEnd) >= 0
+                || indexOf(page, (byte) '<', equals + 2, valueEnd) >= 0) {
+            return false;
+        }
+        String value = new String(page, equals + 2, valueEnd - equals - 2, StandardCharsets.UTF_8);
+        if (Constants.COMPLETELISTSIZE_TAG.equalsIgnoreCase(name)) {
+            resumptionToken.setCompleteListSize(Integer.valueOf(value));
+        }
+        if (Constants.EXPIRATIONDATE_TAG.equalsIgnoreCase(name)) {
+            resumptionToken.setExpirationDate(XMLResponseParser.parseDate(value));
+        }
+        if (Constants.CURSOR_TAG.equalsIgnoreCase(name)) {
+            resumptionToken.setCursor(Integer.valueOf(value));
+        }
+        pos = valueEnd + 1;
+        return true;
+    }
+
+    /**
+     * Moves after the '>' of the current start tag
+     *
+     * @return false if the tag doesn't end
+     */
+    private boolean skipStartTag() {
+        int gt = indexOf(page, (byte) '>', pos, end);
+        if (gt < 0) {
+            return false;
+        }
+        pos = gt + 1;
+        return true;
+    }
+
+    /**
+     * @return true if the tag name at pos is the name, followed by the end of the name
+     */
+    private boolean isTag(byte[] name) {
+        if (!regionMatches(pos, name)) {
+            return false;
+        }
+        byte next = page[pos + name.length];
+        return next == '>' || next == '/' || isWhitespace(next);
+    }
+
+    private boolean regionMatches(int from, byte[] name) {
+        if (from + name.length >= end) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (page[from + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Finds the next '&lt;' 8 bytes at a time : after the xor every '&lt;' is a zero byte, and
+     * (x - 0x01..) & ~x & 0x80.. has the high bit set of the first zero byte
+     */
+    static int indexOfLessThan(byte[] bytes, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long word = (long) LONGS.get(bytes, i) ^ LESS_THAN;
+            long found = (word - ONES) & ~word & HIGH_BITS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (bytes[i] == '<') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param pattern pattern that starts with '&lt;'
+     */
+    private static int indexOf(byte[] bytes, byte[] pattern, int from, int to) {
+        int i = from;
+        while ((i = indexOfLessThan(bytes, i, to)) >= 0) {
+            if (i + pattern.length > to) {
+                return -1;
+            }
+            boolean match = true;
+            for (int j = 1; j < pattern.length && match; j++) {
+                match = bytes[i + j] == pattern[j];
+            }
+            if (match) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte[] pattern) {
+        for (int i = bytes.length - pattern.length; i >= 0; i--) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
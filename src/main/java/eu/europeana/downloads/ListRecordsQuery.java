@@ -2,6 +2,7 @@ package eu.europeana.downloads;
 
 import eu.europeana.oaipmh.model.ListRecords;
 import eu.europeana.oaipmh.model.Record;
+import eu.europeana.oaipmh.model.ResumptionToken;
 import eu.europeana.oaipmh.model.response.ListRecordsResponse;
 import eu.europeana.oaipmh.service.exception.OaiPmhException;
 import java.util.Map.Entry;
@@ -12,10 +13,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.zip.ZipOutputStream;
@@ -43,6 +46,33 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
     @Value("${harvest-threads}")
     private int threads;
 
+    @Value("${harvest-split-threshold}")
+    private long splitThreshold;
+
+    @Value("${harvest-split-windows}")
+    private int splitWindows;
+
+    @Value("${harvest-split-earliest}")
+    private String splitEarliest;
+
+    @Value("${harvest-schedule-probe}")
+    private boolean scheduleProbe;
+
+    @Value("${harvest-virtual-threads}")
+    private boolean virtualThreads;
+
+    @Value("${harvest-prefetch-depth}")
+    private int prefetchDepth;
+
+    @Value("${harvest-update-zips}")
+    private boolean updateZips;
+
+    @Value("${ttl-conversion-threads}")
+    private int ttlConversionThreads;
+
+    @Value("${ttl-conversion-queue}")
+    private int ttlConversionQueue;
+
     @Value("${server-url}")
     private String downloadServerURL;
 
@@ -67,14 +97,58 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
 
     public Integer recordsDownloaded =0;
 
+    private long recordsHarvested;
+
+    private SetHarvestCheckpoint checkpoint;
+
+    private SetSplitSettings splitSettings;
+
+    private TurtleConversionPool turtlePool;
+
+    private String updateFrom;
+
+    private HarvestJournal journal;
+
     public ListRecordsQuery() {
     }
 
-    public ListRecordsQuery(String metadataPrefix, String set, String directoryLocation, int logProgressInterval) {
+    public ListRecordsQuery(String metadataPrefix, String set, String directoryLocation, int logProgressInterval, int prefetchDepth,
+                            SetSplitSettings splitSettings, TurtleConversionPool turtlePool) {
         this.metadataPrefix = metadataPrefix;
         this.set = set;
         this.directoryLocation = directoryLocation;
         this.logProgressInterval = logProgressInterval;
+        this.prefetchDepth = prefetchDepth;
+        this.splitSettings = splitSettings;
+        this.turtlePool = turtlePool;
+    }
+
+    /**
+     * Creates a query that continues a failed harvest of the set from the checkpoint, if its resumption
+     * token is still valid
+     */
+    public ListRecordsQuery(String metadataPrefix, String set, String directoryLocation, int logProgressInterval,
+                            int prefetchDepth, SetSplitSettings splitSettings, TurtleConversionPool turtlePool,
+                            SetHarvestCheckpoint checkpoint) {
+        this(metadataPrefix, set, directoryLocation, logProgressInterval, prefetchDepth, splitSettings, turtlePool);
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Only harvests the records that changed since the date when the set has zips already, the zips are
+     * updated with the changed records
+     *
+     * @param updateFrom date of the last harvest, null to harvest all records
+     */
+    void setUpdateFrom(String updateFrom) {
+        this.updateFrom = updateFrom;
+    }
+
+    /**
+     * @param journal journal of the run, the progress of the set is added to it
+     */
+    void setJournal(HarvestJournal journal) {
+        this.journal = journal;
     }
 
     @PostConstruct
@@ -85,6 +159,7 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
             sets.addAll(Arrays.asList(set.split(",")));
         }
         currentHarvestStartTime = new Date();
+        splitSettings = new SetSplitSettings(splitThreshold, splitWindows, splitEarliest);
     }
 
     /**
@@ -98,6 +173,9 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
      * Example : If there are 5 sets to be harvested and threads are 30.
      * Having 5 threads to harvest each one of them would be faster
      * than one thread, to harvest all 5.
+     *
+     * With virtual threads every set is harvested in its own virtual thread and threads is the maximum
+     * number of sets that are harvested at the same time.
      * @param noOfSets -
      */
     private void initThreadPool(int noOfSets, boolean selectiveUpdate) {
@@ -115,8 +193,13 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
             }
             LOG.info("Optimised the thread count to {} ", threads);
         }
-        threadPool = Executors
-                .newFixedThreadPool(threads);
+        if (virtualThreads) {
+            LOG.info("Harvesting every set in a virtual thread, at most {} sets at the same time", threads);
+            threadPool = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            threadPool = Executors
+                    .newFixedThreadPool(threads);
+        }
     }
 
     @Override
@@ -126,11 +209,24 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
 
     @Override
     public void execute(OAIPMHServiceClient oaipmhServer) throws OaiPmhException {
-         if (sets.size() != 1 && threads > 1) {
-            DownloadsStatus status = executeMultithreadListRecords(oaipmhServer, sets, lastHarvestDate,currentHarvestStartTime);
-            sendEmail(status, false);
-        } else {
-            executeListRecords(oaipmhServer, set);
+        // the queries of the sets are created with the pool, only the query of the run creates it
+        boolean runPool = turtlePool == null && ttlConversionThreads > 0;
+        if (runPool) {
+            LOG.info("Converting records to turtle with {} threads", ttlConversionThreads);
+            turtlePool = new TurtleConversionPool(ttlConversionThreads, ttlConversionQueue);
+        }
+        try {
+            if (sets.size() != 1 && threads > 1) {
+                DownloadsStatus status = executeMultithreadListRecords(oaipmhServer, sets, lastHarvestDate,currentHarvestStartTime);
+                sendEmail(status, false);
+            } else {
+                executeListRecords(oaipmhServer, set);
+            }
+        } finally {
+            if (runPool) {
+                turtlePool.close();
+                turtlePool = null;
+            }
         }
     }
 
@@ -167,52 +263,93 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
         // if setsFromListSets is still empty get the sets from ListSet
         // ie; either set is set to ALL or empty
         List<String> setsToBeDeleted= Collections.EMPTY_LIST;
-        if (setsFromListSets.isEmpty()) {
+        // a run that was killed is continued with its sets and its start time, without the sets that were finished
+        HarvestJournal.UnfinishedRun unfinished = HarvestJournal.readUnfinishedRun(directoryLocation, set);
+        long runStart = start;
+        List<String> setsFinished = new ArrayList<>();
+        if (unfinished != null) {
+            setsFromListSets = new ArrayList<>(unfinished.sets());
+            selectiveUpdate = unfinished.selectiveUpdate();
+            runStart = unfinished.start();
+            currentHarvestStartTime = new Date(runStart);
+            setsFinished.addAll(unfinished.finished());
+            setsFinished.addAll(writeMissingMD5Files(unfinished));
+            LOG.info("Continuing the run of {} that was interrupted, {} of {} sets were finished",
+                    currentHarvestStartTime, setsFinished.size(), setsFromListSets.size());
+        } else if (setsFromListSets.isEmpty()) {
             setsToBeDeleted = getSetsToBeDeleted(oaipmhServer);
             setsFromListSets = getSetsFromListSet(oaipmhServer, lastHarvestDate,setsToBeDeleted);
             selectiveUpdate = true;
         }
         LOG.info("{} Sets to be harvested : {} ", setsFromListSets.size(), setsFromListSets);
-        initThreadPool(setsFromListSets.size(), selectiveUpdate);
+        initThreadPool(setsFromListSets.size() - setsFinished.size(), selectiveUpdate);
         DownloadsStatus status = new DownloadsStatus(setsFromListSets.size(), 0, new Date(start));
+        HarvestJournal journal = null;
+        boolean runFinished = false;
 
         if (! setsFromListSets.isEmpty()) {
             logger.setTotalItems(setsFromListSets.size());
+            // the zips are replaced by new files, so their creation date doesn't tell if a set had zips before the run
+            Set<String> setsWithZips = unfinished != null && unfinished.setsWithZips() != null ? unfinished.setsWithZips()
+                    : getSetsWithZips(setsFromListSets);
+            journal = openJournal(unfinished, runStart, selectiveUpdate, setsFromListSets, setsWithZips);
             List<Future<ListRecordsResult>> results = null;
             List<Callable<ListRecordsResult>> tasks = new ArrayList<>();
-            int perThread = setsFromListSets.size() / threads;
-
+            // largest sets first, the threads take the next set from the queue when they are done with a set
+            SetScheduler scheduler = new SetScheduler(directoryLocation, metadataPrefix);
+            List<String> setsToHarvest = new ArrayList<>(setsFromListSets);
+            setsToHarvest.removeAll(setsFinished);
+            Queue<String> queue = scheduler.schedule(oaipmhServer, setsToHarvest, scheduleProbe, threads);
+
+        // the sets of a selective update only get the records that changed since the last harvest
+        String updateFrom = selectiveUpdate && updateZips && StringUtils.isNotEmpty(lastHarvestDate) ? lastHarvestDate : null;
+        // the zips of a set that failed in the last run are older than the last harvest, the set is harvested in full
+        Set<String> failedSets = updateFrom == null ? Collections.emptySet() : getLastFailedSets();
         // create task for each resource provider
-        for (int i = 0; i < threads; i++) {
-            int fromIndex = i * perThread;
-            int toIndex = (i + 1) * perThread;
-            if (i == threads - 1) {
-                toIndex = setsFromListSets.size();
+        if (virtualThreads) {
+            for (String setToHarvest : queue) {
+                tasks.add(new ListSetsExecutor(new ConcurrentLinkedQueue<>(List.of(setToHarvest)), metadataPrefix, directoryLocation, oaipmhServer, logProgressInterval, prefetchDepth, splitSettings, turtlePool, updateFrom, failedSets, journal));
+            }
+        } else {
+            for (int i = 0; i < threads; i++) {
+                tasks.add(new ListSetsExecutor(queue, metadataPrefix, directoryLocation, oaipmhServer, logProgressInterval, prefetchDepth, splitSettings, turtlePool, updateFrom, failedSets, journal));
             }
-            tasks.add(new ListSetsExecutor(setsFromListSets.subList(fromIndex, toIndex), metadataPrefix, directoryLocation, oaipmhServer, logProgressInterval));
         }
-        try {
+        // a failing or interrupted run cancels all the tasks that are still running
+        try (SetHarvestScope<ListRecordsResult> scope = new SetHarvestScope<>(threadPool, virtualThreads ? threads : 0)) {
             // invoke a separate thread for each provider
-            results = threadPool.invokeAll(tasks);
-            List<String> setsDownloaded = new ArrayList<>();
+            tasks.forEach(scope::fork);
+            results = scope.join();
+            // the sets finished before the run was interrupted are downloaded as well
+            List<String> setsDownloaded = new ArrayList<>(setsFinished);
             ListRecordsResult listRecordsResult;
             Map<String,String>  failedrecordPerDownloadedSet = new HashMap<>();
+            Map<String, Long> harvestTimePerSet = new HashMap<>();
 
             for (Future<ListRecordsResult> result : results) {
                 listRecordsResult = result.get();
                 LOG.info("Executor finished with {} errors in {} sec.",
                         listRecordsResult.getErrors(), listRecordsResult.getTime());
-                counter += perThread;
+                // every set that was processed by the executor has a failed record count
+                counter += listRecordsResult.getFailedRecordCountPerSet().size();
                 // get the successfully downloaded sets
                 if(StringUtils.isNotEmpty(listRecordsResult.getSetsDownloaded())) {
                     setsDownloaded.addAll(Arrays.asList(listRecordsResult.getSetsDownloaded().split("\\s*,\\s*")));
                 }
                 failedrecordPerDownloadedSet.putAll(listRecordsResult.getFailedRecordCountPerSet());
+                harvestTimePerSet.putAll(listRecordsResult.getHarvestTimePerSet());
                 logger.logProgress(counter);
             }
             // setsDownloaded only contains successfully downloaded sets
             status.setSetsRecordCountMap(getRecordsCount(setsDownloaded));
             status.setSetsHarvested(setsDownloaded.size());
+            if (!oaipmhServer.isReplay()) {
+                scheduler.saveHarvestTimes(harvestTimePerSet, status.getSetsRecordCountMap());
+            }
+            if (scheduler.getPredictedTime() > 0) {
+                LOG.info("Sets harvested in {}, predicted {}", ProgressLogger.getDurationText(System.currentTimeMillis() - start),
+                        ProgressLogger.getDurationText(scheduler.getPredictedTime()));
+            }
             getFailedSets(setsFromListSets, setsDownloaded, directoryLocation);
             // After getFailedSets(), setsFromListSets contains failed sets now
             // fail safe check
@@ -220,12 +357,13 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
             failSafeCheck(status.getNoOfSets(), status.getSetsHarvested(), setsFromListSets.size());
 
             Map<String, ZipFileStatus> fileStatusMap = getFileStatusMap(setsDownloaded, lastHarvestDate,currentHarvestStartTime,
-                failedrecordPerDownloadedSet);
+                failedrecordPerDownloadedSet, setsWithZips);
             updateFileStatusMapForDeletedSets(fileStatusMap,setsToBeDeleted);
             updateFileStatusMapForTheFailedSets(fileStatusMap,setsFromListSets); // at this point setsFromListSets contains sets which are not downloaded
 
             status.setsFileStatusMap(fileStatusMap);
             status.setFailedRecordsCountMap(failedrecordPerDownloadedSet);
+            runFinished = true;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             LOG.error("Interrupted.", e);
@@ -233,12 +371,15 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
            LOG.error("Problem with task thread execution.", e);
         }
         }
+        closeJournal(journal, runFinished);
 
         // store the new harvest start date in the file
         // Currently not changing the lastHarvestDate if failed-sets or manually added sets are running
-        if(sets.isEmpty()) {
+        // or if the pages were replayed from the page archive. A run that didn't finish is continued with the
+        // date of the last harvest, the date is written when the continued run finishes
+        if(sets.isEmpty() && !oaipmhServer.isReplay() && (runFinished || setsFromListSets.isEmpty())) {
             LOG.info("Creating/Updating the {} file ", Constants.HARVEST_DATE_FILENAME);
-            SetsUtility.writeNewHarvestDate(directoryLocation, start);
+            SetsUtility.writeNewHarvestDate(directoryLocation, runStart);
             LOG.info("Last Harvest date set to : "+ (SetsUtility.getLastHarvestDate(directoryLocation + Constants.PATH_SEPERATOR
                     + Constants.HARVEST_DATE_FILENAME, set)).trim());
         }
@@ -246,6 +387,20 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
         String timeElapsed = ProgressLogger.getDurationText(System.currentTimeMillis() - start);
         status.setTimeElapsed(timeElapsed);
         LOG.info("ListRecords for all {} sets executed in {}. Harvested {} sets." ,status.getNoOfSets(), timeElapsed, status.getSetsHarvested() );
+        TransportStats transportStats = oaipmhServer.getTransportStats();
+        status.setWireBytes(transportStats.getWireBytes());
+        status.setDecodedBytes(transportStats.getDecodedBytes());
+        LOG.info("OAI-PMH requests : {}", transportStats);
+        if (oaipmhServer.getTurtleCache() != null) {
+            status.setTurtleCacheHits(oaipmhServer.getTurtleCache().getHits());
+            status.setTurtleCacheMisses(oaipmhServer.getTurtleCache().getMisses());
+        }
+        if (oaipmhServer.getConcurrencyLimiter() != null) {
+            LOG.info("OAI-PMH concurrency : {}", oaipmhServer.getConcurrencyLimiter());
+        }
+        if (oaipmhServer.getPageArchive() != null) {
+            LOG.info("Page archive : {}", oaipmhServer.getPageArchive());
+        }
         return status;
     }
 
@@ -308,7 +463,7 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
         List<String> setsFromListSets;
         // if lastHarvestDate is empty, this is the first time we're running the downloads, so get everything
         if (lastHarvestDate.isEmpty()) {
-            setsFromListSets = setsQuery.getSets(oaipmhServer, null, null);
+            setsFromListSets = new ArrayList<>(oaipmhServer.getSetCatalog().getSets());
             LOG.info("There is no lastHarvestDate. ALL {} sets ready for harvest.", setsFromListSets.size());
         }
         // Check for Updated, newly created and de-published datasets.
@@ -324,95 +479,323 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
             } else {
                 LOG.info("There are no De-published datasets");
             }
-            //get the updated or newly added datasets
+            //get the updated or newly added datasets. ListSets has no datestamp per set, so only the server
+            //knows which sets changed since the last harvest
             LOG.info("Executing ListSet to get Updated/Newly-Created datasets since {}", lastHarvestDate);
             setsFromListSets = setsQuery.getSets(oaipmhServer, lastHarvestDate, null);
-            LOG.info("Updated or newly created datasets count is {} ", setsFromListSets.size());
+            Set<String> newSets = new HashSet<>(oaipmhServer.getSetCatalog().getNewSets(
+                    SetsUtility.getLastHarvestedSets(SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE))));
+            long newCount = setsFromListSets.stream().filter(newSets::contains).count();
+            LOG.info("Updated or newly created datasets count is {} ({} updated, {} new)", setsFromListSets.size(),
+                    setsFromListSets.size() - newCount, newCount);
         }
         return setsFromListSets;
     }
 
+    /**
+     * Opens the journal of the run in the sets folder, the run is harvested without a journal if it can't be written
+     */
+    private HarvestJournal openJournal(HarvestJournal.UnfinishedRun unfinished, long runStart, boolean selectiveUpdate,
+                                       List<String> setsOfRun, Set<String> setsWithZips) {
+        try {
+            HarvestJournal journal = new HarvestJournal(directoryLocation, unfinished);
+            if (unfinished == null) {
+                journal.runStarted(runStart, set, selectiveUpdate, setsOfRun, setsWithZips);
+            }
+            return journal;
+        } catch (IOException e) {
+            LOG.error("Unable to open the harvest journal, an interrupted run can't be continued", e);
+            return null;
+        }
+    }
+
+    private void closeJournal(HarvestJournal journal, boolean runFinished) {
+        if (journal == null) {
+            return;
+        }
+        try (journal) {
+            if (runFinished) {
+                journal.runFinished();
+            }
+        } catch (IOException e) {
+            LOG.error("Error closing the harvest journal", e);
+        }
+    }
+
+    /**
+     * Writes the md5 files of the sets of which the zips were written when the run was interrupted
+     *
+     * @return the sets that are finished with their md5 files
+     */
+    private List<String> writeMissingMD5Files(HarvestJournal.UnfinishedRun unfinished) {
+        List<String> finished = new ArrayList<>();
+        for (String setIdentifier : unfinished.zipsWritten()) {
+            ZipUtility.createMD5SumFile(SetsUtility.getZipsFolder(directoryLocation, Constants.XML_FILE, setIdentifier));
+            ZipUtility.createMD5SumFile(SetsUtility.getZipsFolder(directoryLocation, Constants.TTL_FILE, setIdentifier));
+            finished.add(setIdentifier);
+        }
+        return finished;
+    }
+
     private List<String> getSetsToBeDeleted(OAIPMHServiceClient oaipmhServer) {
-      return SetsUtility.getSetsToBeDeleted(oaipmhServer,
-                SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE), logProgressInterval);
+      return SetsUtility.getSetsToBeDeleted(oaipmhServer.getSetCatalog(),
+                SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE));
     }
 
     private void executeListRecords(OAIPMHServiceClient oaipmhServer, String setIdentifier) {
-        long counter = 0;
+        recordsHarvested = 0;
         recordsDownloaded =0;
         long start = System.currentTimeMillis();
         ProgressLogger logger = new ProgressLogger( setIdentifier, -1, logProgressInterval);
 
-        String request = getRequest(oaipmhServer.getOaipmhServer(), setIdentifier);
-        ListRecordsResponse response = oaipmhServer.getListRecordRequest(request);
-        ListRecords responseObject = response.getListRecords();
-        // Create Both zips
         String xmlZipName = SetsUtility.getZipsFolder(directoryLocation, Constants.XML_FILE, setIdentifier);
         String ttlZipName = SetsUtility.getZipsFolder(directoryLocation, Constants.TTL_FILE, setIdentifier);
-
-            try (final ZipOutputStream xmlZout = new ZipOutputStream(
-                new FileOutputStream(new File(xmlZipName)));
-                final ZipOutputStream ttlZout = new ZipOutputStream(
-                    new FileOutputStream(new File(ttlZipName)));
-                OutputStreamWriter writer = new OutputStreamWriter(xmlZout);
-                OutputStreamWriter writer1 = new OutputStreamWriter(ttlZout)) {
+        // the zips are written under a temporary name, the zips of the last harvest are kept until the set is harvested
+        String xmlPartialZip = xmlZipName + Constants.PARTIAL_EXTENSION;
+        String ttlPartialZip = ttlZipName + Constants.PARTIAL_EXTENSION;
+
+        // continue a failed harvest of the set from its last resumption token if possible
+        ListRecords responseObject = getResumedPage(oaipmhServer, setIdentifier, xmlPartialZip, ttlPartialZip);
+        boolean resume = responseObject != null;
+        // a set with zips of the last harvest only gets the changed records, in separate zips
+        boolean update = !resume && canUpdate(setIdentifier, xmlZipName, ttlZipName);
+        String xmlHarvestZip = update ? SetZipUpdater.getChangesZipName(xmlZipName) : xmlPartialZip;
+        String ttlHarvestZip = update ? SetZipUpdater.getChangesZipName(ttlZipName) : ttlPartialZip;
+        if (resume) {
+            recordsHarvested = checkpoint.getRecordsHarvested();
+            recordsDownloaded = checkpoint.getRecordsDownloaded();
+            recordsTobeDownloaded = checkpoint.getRecordsTobeDownloaded();
+            logger.setTotalItems(Long.parseLong(recordsTobeDownloaded));
+        } else {
+            String request = getRequest(oaipmhServer.getOaipmhServer(), setIdentifier, update ? updateFrom : from);
+            ListRecordsResponse response = oaipmhServer.getListRecordRequest(request);
+            responseObject = response.getListRecords();
+        }
+        // Create Both zips, when resuming the records of the failed harvest are kept
+            try (final ZipOutputStream xmlZout = ZipUtility.openZip(xmlHarvestZip, resume, Constants.XML_FILE, !update);
+                final ZipOutputStream ttlZout = ZipUtility.openZip(ttlHarvestZip, resume, Constants.TTL_FILE, !update);
+                OutputStreamWriter writer = new OutputStreamWriter(xmlZout, StandardCharsets.UTF_8);
+                OutputStreamWriter writer1 = new OutputStreamWriter(ttlZout, StandardCharsets.UTF_8);
+                // closed first, so the records that are still converted are written before the zips are closed
+                TurtleZipWriter ttlWriter = new TurtleZipWriter(ttlZout, writer1, turtlePool)) {
 
                 //writing in ZIP
 
                 if (responseObject != null) {
-                    counter += responseObject.getRecords().size();
-
-                    if (responseObject.getResumptionToken() != null) {
-                        logger.setTotalItems(
-                            responseObject.getResumptionToken().getCompleteListSize());
-
-                        recordsTobeDownloaded = String.valueOf(responseObject.getResumptionToken().getCompleteListSize());
-                    } else {
-                        logger.setTotalItems(responseObject.getRecords().size());
-                        recordsTobeDownloaded = String.valueOf(responseObject.getRecords().size());
+                    if (!resume) {
+                        if (responseObject.getResumptionToken() != null) {
+                            logger.setTotalItems(
+                                responseObject.getResumptionToken().getCompleteListSize());
 
-                    }
+                            recordsTobeDownloaded = String.valueOf(responseObject.getResumptionToken().getCompleteListSize());
+                        } else {
+                            logger.setTotalItems(responseObject.getRecords().size());
+                            recordsTobeDownloaded = String.valueOf(responseObject.getRecords().size());
 
-                    for (Record record : responseObject.getRecords()) {
-                        ZipUtility.writeInZip(xmlZout, writer, record, Constants.XML_FILE);
-                        ZipUtility.writeInZip(ttlZout, writer1, record, Constants.TTL_FILE);
-                        recordsDownloaded++;
+                        }
+                        // an update harvests the changed records again when it fails
+                        checkpoint = update ? null : new SetHarvestCheckpoint(setIdentifier, recordsTobeDownloaded);
+                        if (journal != null) {
+                            journal.setStarted(setIdentifier, recordsTobeDownloaded);
+                        }
                     }
 
-                    while (responseObject.getResumptionToken() != null) {
-
-                        request = getResumptionRequest(oaipmhServer.getOaipmhServer(),
-                            responseObject.getResumptionToken().getValue());
-                        response = oaipmhServer.getListRecordRequest(request);
-                        responseObject = response.getListRecords();
-                        //writing in ZIP
-                        for (Record record : responseObject.getRecords()) {
-                            ZipUtility.writeInZip(xmlZout, writer, record, Constants.XML_FILE);
-                            ZipUtility.writeInZip(ttlZout, writer1, record, Constants.TTL_FILE);
-                            recordsDownloaded++;
+                    if (!resume && !update && splitSettings != null && splitSettings.isSplit(Long.parseLong(recordsTobeDownloaded))) {
+                        // the records of the first page are harvested again in their window. The windows are
+                        // harvested at the same time, so a split set has no checkpoint to resume from
+                        checkpoint = null;
+                        DatestampWindowHarvester windowHarvester = new DatestampWindowHarvester(oaipmhServer, metadataPrefix,
+                            setIdentifier, prefetchDepth, splitSettings.getWindows(), logger);
+                        try {
+                            windowHarvester.harvest(DatestampWindowHarvester.parse(from), splitSettings.getEarliestDatestamp(),
+                                Long.parseLong(recordsTobeDownloaded), xmlZout, writer, ttlZout, writer1);
+                        } finally {
+                            recordsDownloaded = windowHarvester.getRecordsDownloaded();
+                            recordsHarvested = windowHarvester.getRecordsHarvested();
                         }
-                        if (responseObject == null) {
-                            break;
+                        if (recordsHarvested < Long.parseLong(recordsTobeDownloaded)) {
+                            checkWindowShortfall(windowHarvester, setIdentifier);
+                        }
+                    } else {
+                        // the records of all pages, with prefetching the next pages are requested while the records are written
+                        try (RecordIterator records = new RecordIterator(oaipmhServer,
+                            token -> getResumptionRequest(oaipmhServer.getOaipmhServer(), token),
+                            responseObject, prefetchDepth, setIdentifier, page -> pageWritten(page, logger, xmlZout, ttlZout, ttlWriter))) {
+                            while (records.hasNext()) {
+                                //writing in ZIP
+                                Record record = records.next();
+                                ZipUtility.writeInZip(xmlZout, writer, record, Constants.XML_FILE);
+                                ttlWriter.write(record);
+                                recordsDownloaded++;
+                            }
                         }
-                        counter += responseObject.getRecords().size();
-                        logger.logProgress(counter);
                     }
 
                 }
 
             } catch (IOException e) {
-                LOG.error("Error creating outputStreams ", e);
+                // the zips of the last harvest are kept
+                throw new IllegalStateException("Error writing the zips of set " + setIdentifier, e);
             }
             finally {
                 LOG.info("Dataset:"+set+ " Total records: "+recordsTobeDownloaded + " Downloaded:" + recordsDownloaded + " Failed records:" +(Long.valueOf(recordsTobeDownloaded)-recordsDownloaded));
             }
-            //create MD5Sum file for the XML and TTL zip
-            ZipUtility.createMD5SumFile(xmlZipName);
-            ZipUtility.createMD5SumFile(ttlZipName);
+            if (update) {
+                // the md5 files are written while the zips are updated
+                updateZips(oaipmhServer, setIdentifier, xmlZipName, ttlZipName);
+            } else {
+                commitZips(setIdentifier, xmlZipName, ttlZipName);
+            }
 
             LOG.info("ListRecords for set {} executed in {}. Harvested {} records.", setIdentifier,
-                ProgressLogger.getDurationText(System.currentTimeMillis() - start), counter);
+                ProgressLogger.getDurationText(System.currentTimeMillis() - start), recordsHarvested);
+
+    }
+
+    /**
+     * Records deleted while the set was harvested in datestamp windows are not in the windows, the size of the set
+     * is probed again to tell them apart from records that are missing from the windows. Missing records are
+     * reported as failed records of the set.
+     */
+    private void checkWindowShortfall(DatestampWindowHarvester windowHarvester, String setIdentifier) {
+        Long size = windowHarvester.probeSize();
+        if (size != null && size <= recordsHarvested) {
+            LOG.info("Set {} has {} of the {} records now, the other records were deleted while it was harvested",
+                setIdentifier, size, recordsTobeDownloaded);
+            recordsTobeDownloaded = String.valueOf(recordsHarvested);
+            return;
+        }
+        LOG.warn("Harvested {} of {} records of set {} in datestamp windows, {} records now", recordsHarvested,
+            recordsTobeDownloaded, setIdentifier, size);
+    }
+
+    /**
+     * Called when all records of the page are written in the XML zip
+     */
+    private void pageWritten(ListRecords page, ProgressLogger logger, ZipOutputStream xmlZout, ZipOutputStream ttlZout,
+                             TurtleZipWriter ttlWriter) {
+        recordsHarvested += page.getRecords().size();
+        ResumptionToken nextToken = page.getResumptionToken();
+        int downloaded = recordsDownloaded;
+        long harvested = recordsHarvested;
+        // the harvest can only continue from the next page when the turtle of this page is in the zip as well
+        if (checkpoint != null) {
+            SetHarvestCheckpoint setCheckpoint = checkpoint;
+            ttlWriter.whenWritten(() -> {
+                setCheckpoint.pageWritten(nextToken, downloaded, harvested);
+                // the entries of the page have to be in the files before the journal says so
+                if (journal != null && flushZips(setCheckpoint.getSetIdentifier(), xmlZout, ttlZout)) {
+                    journal.pageWritten(setCheckpoint);
+                }
+            });
+        }
+        logger.logProgress(recordsHarvested);
+    }
 
+    /**
+     * @return true if the entries written so far are in the files of the zips
+     */
+    private static boolean flushZips(String setIdentifier, ZipOutputStream xmlZout, ZipOutputStream ttlZout) {
+        try {
+            xmlZout.flush();
+            ttlZout.flush();
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Unable to flush the zips of set {}, the page is not written in the harvest journal", setIdentifier, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the set can be updated with the records that changed since the last harvest
+     */
+    private boolean canUpdate(String setIdentifier, String xmlZipName, String ttlZipName) {
+        if (updateFrom == null) {
+            return false;
+        }
+        if (!ZipUtility.isValidZip(xmlZipName) || !ZipUtility.isValidZip(ttlZipName)) {
+            LOG.info("Set {} has no zips of the last harvest, harvesting all records", setIdentifier);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Updates the zips with the records of the changes zips. A failed update fails the set, the zips of the
+     * last harvest are not changed then.
+     */
+    private void updateZips(OAIPMHServiceClient oaipmhServer, String setIdentifier, String xmlZipName, String ttlZipName) {
+        try {
+            new SetZipUpdater(oaipmhServer, metadataPrefix, setIdentifier).update(xmlZipName, ttlZipName);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error updating the zips of set " + setIdentifier, e);
+        }
+        if (journal != null) {
+            journal.zipsWritten(setIdentifier);
+            journal.md5Written(setIdentifier);
+        }
+    }
+
+    /**
+     * Replaces the zips of the last harvest with the harvested zips and their checksum files, which were
+     * written when the harvested zips were closed
+     */
+    private void commitZips(String setIdentifier, String xmlZipName, String ttlZipName) {
+        try {
+            ZipUtility.commitZip(xmlZipName);
+            ZipUtility.commitZip(ttlZipName);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error renaming the zips of set " + setIdentifier, e);
+        }
+        if (journal != null) {
+            journal.zipsWritten(setIdentifier);
+            journal.md5Written(setIdentifier);
+        }
+    }
+
+    /**
+     * Requests the page of the last resumption token of a failed harvest of the set.
+     * Server errors are thrown, so the set can be retried again from the same checkpoint.
+     *
+     * @return the page to continue the harvest with or null if the set has to be harvested from scratch
+     */
+    private ListRecords getResumedPage(OAIPMHServiceClient oaipmhServer, String setIdentifier, String xmlZipName, String ttlZipName) {
+        if (checkpoint == null) {
+            return null;
+        }
+        if (!checkpoint.canResume()) {
+            LOG.info("Resumption token of set {} has expired, harvesting the set from scratch", setIdentifier);
+            return null;
+        }
+        // the zips of a harvest that was killed are not closed, their entries of the checkpoint are recovered
+        if (!ZipUtility.recoverZip(xmlZipName, checkpoint.getRecordsDownloaded(), Constants.XML_FILE) ||
+                !ZipUtility.recoverZip(ttlZipName, checkpoint.getRecordsDownloaded(), Constants.TTL_FILE)) {
+            LOG.warn("Zips of the failed harvest of set {} can't be read, harvesting the set from scratch", setIdentifier);
+            return null;
+        }
+        LOG.info("Resuming set {} after {} of {} records", setIdentifier, checkpoint.getRecordsHarvested(),
+                checkpoint.getRecordsTobeDownloaded());
+        String request = getResumptionRequest(oaipmhServer.getOaipmhServer(), checkpoint.getResumptionToken().getValue());
+        try {
+            ListRecords page = oaipmhServer.getListRecordRequest(request).getListRecords();
+            // the token of a checkpoint always has a next page, an empty last page is a token that was not accepted
+            if (page == null || (page.getRecords().isEmpty() && page.getResumptionToken() == null)) {
+                LOG.warn("Resumption token of set {} is not accepted anymore, harvesting the set from scratch", setIdentifier);
+                return null;
+            }
+            return page;
+        } catch (HttpClientErrorException e) {
+            LOG.warn("Resumption token of set {} is not accepted anymore, harvesting the set from scratch. {}",
+                    setIdentifier, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return progress of the harvest of the set, used to resume the set when the harvest failed
+     */
+    public SetHarvestCheckpoint getCheckpoint() {
+        return checkpoint;
     }
 
     private String getResumptionRequest(String oaipmhServer, String resumptionToken) {
@@ -420,12 +803,12 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
                 String.format(RESUMPTION_TOKEN_PARAMETER, resumptionToken);
     }
 
-    private String getRequest(String oaipmhServer, String setIdentifier) {
+    private String getRequest(String oaipmhServer, String setIdentifier, String fromDate) {
         StringBuilder sb = new StringBuilder();
         sb.append(getBaseRequest(oaipmhServer, getVerbName()));
         sb.append(String.format(METADATA_PREFIX_PARAMETER, metadataPrefix));
-        if (from != null && !from.isEmpty()) {
-            sb.append(String.format(FROM_PARAMETER, from));
+        if (fromDate != null && !fromDate.isEmpty()) {
+            sb.append(String.format(FROM_PARAMETER, fromDate));
         }
         if (set != null && !set.isEmpty() && !StringUtils.equals(set, "ALL")) {
             sb.append(String.format(SET_PARAMETER, setIdentifier));
@@ -442,13 +825,42 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
         LOG.info("Failed sets file values : " + CSVFile.readCSVFile(CSVFile.getCsvFilePath(directoryLocation)));
     }
 
+    /**
+     * @return the sets that failed in the last run
+     */
+    private Set<String> getLastFailedSets() {
+        String path = CSVFile.getCsvFilePath(directoryLocation);
+        if (!new File(path).exists()) {
+            return Collections.emptySet();
+        }
+        Set<String> failedSets = new HashSet<>(CSVFile.readCSVFile(path));
+        if (!failedSets.isEmpty()) {
+            LOG.info("{} sets failed in the last run, their zips are harvested in full : {}", failedSets.size(), failedSets);
+        }
+        return failedSets;
+    }
+
+    /**
+     * @return the sets that have an XML zip of an earlier harvest
+     */
+    private Set<String> getSetsWithZips(List<String> setsOfRun) {
+        Set<String> setsWithZips = new HashSet<>();
+        for (String setId : setsOfRun) {
+            if (new File(SetsUtility.getZipsFolder(directoryLocation, Constants.XML_FILE, setId)).exists()) {
+                setsWithZips.add(setId);
+            }
+        }
+        return setsWithZips;
+    }
+
     private Map<String,ZipFileStatus> getFileStatusMap(List<String> setsDownloaded,String lastHarvestDate,
-        Date currentHarvestStartTime, Map<String, String> failedrecordPerSet) {
+        Date currentHarvestStartTime, Map<String, String> failedrecordPerSet, Set<String> setsWithZips) {
         Map<String,ZipFileStatus> statusMap = new HashMap<>();
         //Put status for New or Unchange or Changed or Reharvested sets
         for(String setId : setsDownloaded){
             String fileName = SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE)+Constants.PATH_SEPERATOR+setId + Constants.ZIP_EXTENSION;
-            statusMap.put(setId,ZipUtility.generateFileStatus(fileName,lastHarvestDate,currentHarvestStartTime));
+            statusMap.put(setId,ZipUtility.generateFileStatus(fileName,lastHarvestDate,currentHarvestStartTime,
+                setsWithZips.contains(setId)));
         }
         //Put status for failed sets , these are considered as the partially downloaded sets as we do not have all records properly downloaded
         for(Entry<String,String> kv : failedrecordPerSet.entrySet()){
@@ -456,7 +868,7 @@ public class ListRecordsQuery extends BaseQuery implements OAIPMHQuery {
                 String fileName = SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE)
                     + Constants.PATH_SEPERATOR + kv.getKey() + Constants.ZIP_EXTENSION;
                 statusMap.put(kv.getKey(), ZipUtility.generateFileStatus(fileName, lastHarvestDate,
-                    currentHarvestStartTime));
+                    currentHarvestStartTime, setsWithZips.contains(kv.getKey())));
             }
         }
         return statusMap;
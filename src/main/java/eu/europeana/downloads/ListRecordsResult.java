@@ -1,5 +1,6 @@
 package eu.europeana.downloads;
 
+import java.util.Collections;
 import java.util.Map;
 
 public class ListRecordsResult {
@@ -11,6 +12,9 @@ public class ListRecordsResult {
 
     private  Map<String, String> failedRecordCountPerSet;
 
+    // harvest time in ms of the successfully harvested sets
+    private Map<String, Long> harvestTimePerSet = Collections.emptyMap();
+
     ListRecordsResult(float time, String setsDownloaded, int errors,
         Map<String, String> failedRecordCountPerSet) {
         this.time = time;
@@ -19,6 +23,12 @@ public class ListRecordsResult {
         this.failedRecordCountPerSet = failedRecordCountPerSet;
     }
 
+    ListRecordsResult(float time, String setsDownloaded, int errors,
+        Map<String, String> failedRecordCountPerSet, Map<String, Long> harvestTimePerSet) {
+        this(time, setsDownloaded, errors, failedRecordCountPerSet);
+        this.harvestTimePerSet = harvestTimePerSet;
+    }
+
     int getErrors() {
         return errors;
     }
@@ -34,4 +44,8 @@ public class ListRecordsResult {
     public Map<String, String> getFailedRecordCountPerSet() {
         return failedRecordCountPerSet;
     }
+
+    public Map<String, Long> getHarvestTimePerSet() {
+        return harvestTimePerSet;
+    }
 }
@@ -7,7 +7,8 @@ import org.apache.logging.log4j.Logger;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.ResourceAccessException;
 
-import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 public class ListSetsExecutor implements Callable<ListRecordsResult> {
@@ -23,7 +24,8 @@ public class ListSetsExecutor implements Callable<ListRecordsResult> {
     private static long loggerThreadId;
     private int logProgressInterval;
 
-    private List<String> sets;
+    // shared by all executors, every executor takes the next set when it finished the previous one
+    private Queue<String> sets;
 
     private String directoryLocation;
 
@@ -31,13 +33,36 @@ public class ListSetsExecutor implements Callable<ListRecordsResult> {
 
     private OAIPMHServiceClient oaipmhServer;
 
+    private int prefetchDepth;
 
-    public ListSetsExecutor(List<String> sets, String metadataPrefix, String directoryLocation, OAIPMHServiceClient oaipmhServer, int logProgressInterval) {
+    private SetSplitSettings splitSettings;
+
+    private TurtleConversionPool turtlePool;
+
+    // date of the last harvest when the zips of the sets are updated with the changed records
+    private String updateFrom;
+
+    // sets that failed in the last run, their zips are not updated
+    private Set<String> failedSets;
+
+    // journal of the run, null if the run has no journal
+    private HarvestJournal journal;
+
+    public ListSetsExecutor(Queue<String> sets, String metadataPrefix, String directoryLocation, OAIPMHServiceClient oaipmhServer,
+                            int logProgressInterval, int prefetchDepth, SetSplitSettings splitSettings,
+                            TurtleConversionPool turtlePool, String updateFrom, Set<String> failedSets,
+                            HarvestJournal journal) {
         this.sets = sets;
         this.metadataPrefix = metadataPrefix;
         this.directoryLocation = directoryLocation;
         this.oaipmhServer = oaipmhServer;
         this.logProgressInterval = logProgressInterval;
+        this.prefetchDepth = prefetchDepth;
+        this.splitSettings = splitSettings;
+        this.turtlePool = turtlePool;
+        this.updateFrom = updateFrom;
+        this.failedSets = failedSets;
+        this.journal = journal;
     }
 
     @Override
@@ -57,20 +82,35 @@ public class ListSetsExecutor implements Callable<ListRecordsResult> {
             }
         }
         Map<String, String> failedRecordCountPerSet = new HashMap<String, String>();
-        for (String set : sets) {
-            ListRecordsQuery listRecordsQuery = new ListRecordsQuery(metadataPrefix, set,
-                directoryLocation, logProgressInterval);
+        Map<String, Long> harvestTimePerSet = new HashMap<>();
+        String set;
+        while ((set = sets.poll()) != null) {
+            if (Thread.currentThread().isInterrupted()) {
+                LOG.warn("Harvest cancelled, not harvesting set {} and the following sets", set);
+                break;
+            }
+            long setStart = System.currentTimeMillis();
+            // a set of an interrupted run continues from the last page in the journal
+            ListRecordsQuery listRecordsQuery = new ListRecordsQuery(metadataPrefix, set, directoryLocation,
+                logProgressInterval, prefetchDepth, splitSettings, turtlePool, journal == null ? null : journal.getCheckpoint(set));
+            listRecordsQuery.setUpdateFrom(failedSets.contains(set) ? null : updateFrom);
+            listRecordsQuery.setJournal(journal);
             try {
                 listRecordsQuery.execute(oaipmhServer);
                 setsDownloaded.append(set).append(",");
+                harvestTimePerSet.put(set, System.currentTimeMillis() - setStart);
             } catch (HttpServerErrorException | ResourceAccessException e) {
                 LOG.error("Error retrieving set {} {}", set, e);
                 // thread to wait for 2 milliseconds
                 Thread.sleep(2000);
-                // will retry the request
-                boolean retrySuccess = retryTask(set);
-                if (! retrySuccess) {
+                // will retry the request, continuing from the last page that was written
+                ListRecordsQuery retriedQuery = retryTask(set, listRecordsQuery.getCheckpoint());
+                if (retriedQuery == null) {
                     errors++;
+                } else {
+                    setsDownloaded.append(set).append(",");
+                    harvestTimePerSet.put(set, System.currentTimeMillis() - setStart);
+                    listRecordsQuery = retriedQuery;
                 }
             }
 
@@ -90,34 +130,40 @@ public class ListSetsExecutor implements Callable<ListRecordsResult> {
             long failedRecordCount = Long.valueOf(listRecordsQuery.recordsTobeDownloaded)- listRecordsQuery.recordsDownloaded;
             failedRecordCountPerSet.put(set,String.valueOf(failedRecordCount));
         }
-        return new ListRecordsResult((System.currentTimeMillis() - start) / 1000F, setsDownloaded.toString(), errors,failedRecordCountPerSet);
+        return new ListRecordsResult((System.currentTimeMillis() - start) / 1000F, setsDownloaded.toString(), errors,failedRecordCountPerSet,
+            harvestTimePerSet);
     }
 
     /**
      * retry mechanism : if error is due to connection issues with oai-pmh application
      * request will be retried  MAX_RETRIES_PER_THREAD times.
+     * Every retry continues from the resumption token of the last page that was written, unless the
+     * token has expired.
      *
      * @param set set to be executed
-     * @return boolean if retry is successful
+     * @param checkpoint progress of the failed harvest, may be null
+     * @return the query that harvested the set or null if all retries failed
     */
-    private boolean retryTask(String set) {
-        boolean success = false;
+    private ListRecordsQuery retryTask(String set, SetHarvestCheckpoint checkpoint) {
         for (int i = 1; i <= MAX_RETRIES_PER_THREAD; i++) {
-            if (!success) {
-                try {
-                    LOG.info("Retrying the set {} {} times ", set, i);
-                    new ListRecordsQuery(metadataPrefix, set, directoryLocation, logProgressInterval).execute(oaipmhServer);
-                    success = true;
-                } catch (HttpServerErrorException | ResourceAccessException ex) {
-                    if (i == MAX_RETRIES_PER_THREAD) {
-                        LOG.error("Error retrieving set {} after {} retries {}", set, i, ex);
-                    }
-                } catch (Exception ex) {
+            ListRecordsQuery query = new ListRecordsQuery(metadataPrefix, set, directoryLocation, logProgressInterval,
+                    prefetchDepth, splitSettings, turtlePool, checkpoint);
+            query.setUpdateFrom(failedSets.contains(set) ? null : updateFrom);
+            query.setJournal(journal);
+            try {
+                LOG.info("Retrying the set {} {} times ", set, i);
+                query.execute(oaipmhServer);
+                return query;
+            } catch (HttpServerErrorException | ResourceAccessException ex) {
+                checkpoint = query.getCheckpoint();
+                if (i == MAX_RETRIES_PER_THREAD) {
                     LOG.error("Error retrieving set {} after {} retries {}", set, i, ex);
-                    break;
                 }
+            } catch (Exception ex) {
+                LOG.error("Error retrieving set {} after {} retries {}", set, i, ex);
+                break;
             }
         }
-        return success;
+        return null;
     }
 }
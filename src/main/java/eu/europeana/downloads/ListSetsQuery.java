@@ -45,7 +45,7 @@ public class ListSetsQuery extends BaseQuery implements OAIPMHQuery  {
         long start = System.currentTimeMillis();
         ProgressLogger logger = new ProgressLogger("All sets", -1, logProgressInterval);
         String request = getRequest(oaipmhServer.getOaipmhServer(), from , until);
-        ListSetsResponse response = (ListSetsResponse) oaipmhServer.makeRequest(request, ListSetsResponse.class);
+        ListSetsResponse response = oaipmhServer.getListSetsRequest(request);
             ListSets responseObject = response.getListSets();
             if (responseObject != null) {
                     counter += responseObject.getSets().size();
@@ -58,7 +58,7 @@ public class ListSetsQuery extends BaseQuery implements OAIPMHQuery  {
 
                     while (responseObject.getResumptionToken() != null) {
                         request = getResumptionRequest(oaipmhServer.getOaipmhServer(), responseObject.getResumptionToken().getValue());
-                        response = (ListSetsResponse) oaipmhServer.makeRequest(request, ListSetsResponse.class);
+                        response = oaipmhServer.getListSetsRequest(request);
                         responseObject = response.getListSets();
                         if (responseObject == null) {
                             break;
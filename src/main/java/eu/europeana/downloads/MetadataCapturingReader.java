@@ -0,0 +1,120 @@
+package eu.europeana.downloads;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Reader that captures the raw content of every metadata element while the characters pass through
+ * to the XML parser. This way the metadata can be stored exactly as it was sent by the server
+ * (the same as taking the substring between the metadata tags of the response) without keeping the
+ * complete response in memory.
+ *
+ * The parser reads ahead, so when it reports the end of a metadata element the content is already
+ * captured. Captured values are queued in document order and must be taken with {@link #nextMetadata()}.
+ */
+class MetadataCapturingReader extends FilterReader {
+
+    private static final String START_TAG = "<" + Constants.MEATADATA_TAG;
+    private static final String END_TAG = "</" + Constants.MEATADATA_TAG + ">";
+
+    private enum State { SEARCHING, IN_START_TAG, CAPTURING }
+
+    private final Deque<String> captured = new ArrayDeque<>();
+    private final StringBuilder value = new StringBuilder();
+    private final char[] single = new char[1];
+
+    private State state = State.SEARCHING;
+    // number of characters of the start or end tag that are matched so far
+    private int matched;
+
+    MetadataCapturingReader(Reader in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int read = super.read(cbuf, off, len);
+        if (read > 0) {
+            scan(cbuf, off, off + read);
+        }
+        return read;
+    }
+
+    /**
+     * @return the content of the next metadata element (prefixed with the xml declaration) or null
+     *         if no metadata was captured
+     */
+    String nextMetadata() {
+        return captured.poll();
+    }
+
+    private void scan(char[] chars, int from, int to) {
+        int captureFrom = from;
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            switch (state) {
+                case SEARCHING:
+                    if (matched == START_TAG.length()) {
+                        // only <metadata> or <metadata attributes..>, not <metadataSomething>
+                        matched = 0;
+                        if (c == '>') {
+                            startCapture();
+                            captureFrom = i + 1;
+                        } else if (Character.isWhitespace(c)) {
+                            state = State.IN_START_TAG;
+                        } else {
+                            matched = match(START_TAG, c);
+                        }
+                    } else {
+                        matched = match(START_TAG, c);
+                    }
+                    break;
+                case IN_START_TAG:
+                    if (c == '>') {
+                        startCapture();
+                        captureFrom = i + 1;
+                    }
+                    break;
+                default:
+                    matched = match(END_TAG, c);
+                    if (matched == END_TAG.length()) {
+                        value.append(chars, captureFrom, i + 1 - captureFrom);
+                        value.setLength(value.length() - END_TAG.length());
+                        captured.add(value.toString());
+                        state = State.SEARCHING;
+                        matched = 0;
+                    }
+            }
+        }
+        if (state == State.CAPTURING) {
+            value.append(chars, captureFrom, to - captureFrom);
+        }
+    }
+
+    private void startCapture() {
+        state = State.CAPTURING;
+        matched = 0;
+        value.setLength(0);
+        value.append(Constants.XML_DECLARATION);
+    }
+
+    /**
+     * Both tags only contain '<' as first character, so on a mismatch we only need to check if the
+     * character starts a new match
+     */
+    private int match(String tag, char c) {
+        if (tag.charAt(matched) == c) {
+            return matched + 1;
+        }
+        return c == '<' ? 1 : 0;
+    }
+}
@@ -1,22 +1,20 @@
 package eu.europeana.downloads;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import eu.europeana.oaipmh.model.RDFMetadata;
-import eu.europeana.oaipmh.model.response.*;
-import eu.europeana.oaipmh.model.serialize.*;
+import eu.europeana.oaipmh.model.response.GetRecordResponse;
+import eu.europeana.oaipmh.model.response.ListIdentifiersResponse;
+import eu.europeana.oaipmh.model.response.ListRecordsResponse;
+import eu.europeana.oaipmh.model.response.ListSetsResponse;
 import eu.europeana.oaipmh.service.exception.OaiPmhException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.XML;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,9 +32,73 @@ public class OAIPMHServiceClient {
     @Value("${sets-folder}")
     private String directoryLocation;
 
-    private RestTemplate restTemplate = new RestTemplate();
+    @Value("${harvest-threads}")
+    private int threads;
 
-    private ObjectMapper mapper;
+    @Value("${http-client}")
+    private String httpClient;
+
+    @Value("${http-connect-timeout}")
+    private int connectTimeout;
+
+    @Value("${http-read-timeout}")
+    private int readTimeout;
+
+    @Value("${http-page-timeout}")
+    private int pageTimeout;
+
+    @Value("${http-compression}")
+    private boolean compression;
+
+    @Value("${adaptive-concurrency}")
+    private boolean adaptiveConcurrency;
+
+    @Value("${adaptive-concurrency-min}")
+    private int adaptiveConcurrencyMin;
+
+    @Value("${adaptive-concurrency-max}")
+    private int adaptiveConcurrencyMax;
+
+    @Value("${adaptive-concurrency-latency-target}")
+    private long adaptiveConcurrencyLatencyTarget;
+
+    @Value("${list-records-parser}")
+    private String listRecordsParser;
+
+    @Value("${ttl-writer}")
+    private String ttlWriter;
+
+    @Value("${ttl-cache-folder}")
+    private String ttlCacheFolder;
+
+    @Value("${ttl-cache-max-size}")
+    private long ttlCacheMaxSize;
+
+    @Value("${zip-deflate-threads}")
+    private int zipDeflateThreads;
+
+    @Value("${zip-level-xml}")
+    private int zipLevelXml;
+
+    @Value("${zip-level-ttl}")
+    private int zipLevelTtl;
+
+    @Value("${zip-sha256}")
+    private boolean zipSha256;
+
+    @Value("${page-archive-mode}")
+    private String pageArchiveMode;
+
+    @Value("${page-archive-folder}")
+    private String pageArchiveFolder;
+
+    private OAIPMHTransport transport;
+
+    private SetCatalog setCatalog;
+
+    private TurtleCache turtleCache;
+
+    private XMLResponseParser.Engine parserEngine;
 
     @Autowired
     private ListIdentifiersQuery listIdentifiersQuery;
@@ -50,23 +112,46 @@ public class OAIPMHServiceClient {
     @Autowired
     private CheckSumGenerator checkSumGenerator;
 
+    @Autowired
+    private TurtleZipGenerator turtleZipGenerator;
+
     private Map<String, OAIPMHQuery> queries = new HashMap<>();
 
     @PostConstruct
-    public void init() {
+    public void init() throws IOException {
         queries.put("ListIdentifiers", listIdentifiersQuery);
         queries.put("ListRecords", listRecordsQuery);
         queries.put("ListSets", listSetsQuery);
         queries.put("CheckSum", checkSumGenerator);
+        queries.put("DeriveTTL", turtleZipGenerator);
 
-        mapper = new ObjectMapper();
-        SimpleModule module = new SimpleModule();
-        module.addDeserializer(ListIdentifiersResponse.class, new ListIdentifiersResponseDeserializer());
-        module.addDeserializer(GetRecordResponse.class, new GetRecordResponseDeserializer());
-        module.addDeserializer(RDFMetadata.class, new RDFMetadataDeserializer());
-        module.addDeserializer(ListRecordsResponse.class, new ListRecordsResponseDeserializer());
-        module.addDeserializer(ListSetsResponse.class, new ListSetsResponseDeserializer());
-        mapper.registerModule(module);
+        transport = new OAIPMHTransport(oaipmhServer, httpClient, threads, connectTimeout, readTimeout, pageTimeout, compression);
+        if (adaptiveConcurrency) {
+            transport.setConcurrencyLimiter(new AdaptiveConcurrencyLimiter(adaptiveConcurrencyMin, adaptiveConcurrencyMax,
+                    adaptiveConcurrencyLatencyTarget));
+        }
+        TurtleResponseParser.setStreaming(StringUtils.equalsIgnoreCase(ttlWriter, "stream"));
+        if (TurtleResponseParser.isStreaming()) {
+            LOG.info("Converting the records to turtle with the streaming writer");
+        }
+        if (StringUtils.isNotBlank(ttlCacheFolder)) {
+            turtleCache = new TurtleCache(ttlCacheFolder, TurtleResponseParser.isStreaming() ? "stream" : "model",
+                    ttlCacheMaxSize * 1024 * 1024);
+            TurtleResponseParser.setCache(turtleCache);
+        }
+        ZipUtility.setCompression(zipDeflateThreads, zipLevelXml, zipLevelTtl);
+        ZipChecksums.setSha256(zipSha256);
+        if (zipDeflateThreads > 0) {
+            LOG.info("Compressing the zip entries with {} threads", zipDeflateThreads);
+        }
+        parserEngine = XMLResponseParser.getEngine(listRecordsParser);
+        if (parserEngine != XMLResponseParser.Engine.STAX) {
+            LOG.info("Using the {} engine to parse the ListRecords pages", parserEngine);
+        }
+        PageArchive.Mode archiveMode = PageArchive.getMode(pageArchiveMode);
+        if (archiveMode != PageArchive.Mode.OFF) {
+            transport.setPageArchive(new PageArchive(pageArchiveFolder, archiveMode, oaipmhServer));
+        }
         LOG.info("Using OAI-PMH server at {}", oaipmhServer);
     }
 
@@ -74,6 +159,54 @@ public class OAIPMHServiceClient {
         return oaipmhServer;
     }
 
+    /**
+     * @return statistics of all the requests made to the OAI-PMH server in this run
+     */
+    public TransportStats getTransportStats() {
+        return transport.getStats();
+    }
+
+    /**
+     * @return the cache of the turtle of earlier runs, null if there is no cache
+     */
+    public TurtleCache getTurtleCache() {
+        return turtleCache;
+    }
+
+    /**
+     * @return the limiter for the number of concurrent requests, null if adaptive concurrency is disabled
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return transport.getConcurrencyLimiter();
+    }
+
+    /**
+     * @return the archive of the raw response pages, null if pages are not captured or replayed
+     */
+    public PageArchive getPageArchive() {
+        return transport.getPageArchive();
+    }
+
+    /**
+     * @return true if the pages are read from the page archive instead of the server
+     */
+    public boolean isReplay() {
+        return transport.getPageArchive() != null && transport.getPageArchive().isReplay();
+    }
+
+    /**
+     * Retrieves all the sets of the server with ListSets the first time it is called, later calls in the
+     * same run return the same catalog
+     *
+     * @return all sets of the server
+     */
+    public synchronized SetCatalog getSetCatalog() {
+        if (setCatalog == null) {
+            setCatalog = new SetCatalog(listSetsQuery.getSets(this, null, null));
+        }
+        return setCatalog;
+    }
+
     /**
      * Will execute the verb and retry the Failed sets.
      * Failed sets will be retried if any exist from previous run
@@ -89,33 +222,38 @@ public class OAIPMHServiceClient {
             return;
         }
         SetsUtility.createFolders(directoryLocation);
-        verbToExecute.execute(this);
-    }
-
-    public OAIResponse makeRequest(String request, Class<? extends OAIResponse> responseClass) {
-        OAIResponse response = null;
-        String responseAsString = restTemplate.getForObject(request, String.class);
-        String json = XML.toJSONObject(responseAsString).toString();
         try {
-            response = mapper.readValue(json, responseClass);
-        } catch (IOException e) {
-            LOG.error("Exception when deserializing response.", e);
+            verbToExecute.execute(this);
+        } finally {
+            if (turtleCache != null) {
+                turtleCache.evict();
+                LOG.info("Turtle cache : {}", turtleCache);
+            }
         }
-        return response;
     }
 
-
     public String getHarvestMethod() {
         return harvestMethod;
     }
 
     public GetRecordResponse getGetRecordRequest(String request) {
-        String responseAsString = restTemplate.getForObject(request, String.class);
+        String responseAsString = transport.getForString(request);
         return XMLResponseParser.parseGetRecordResponse(responseAsString);
     }
 
     public ListRecordsResponse getListRecordRequest(String request) {
-        String responseAsString = restTemplate.getForObject(request, String.class);
-        return XMLResponseParser.parseListRecordResponse(responseAsString);
+        // with StAX the response is parsed while it is received, without keeping the complete page in memory
+        return transport.execute(request, (body, charset) -> XMLResponseParser.parseListRecordResponse(
+                body, charset, parserEngine));
+    }
+
+    public ListSetsResponse getListSetsRequest(String request) {
+        return transport.execute(request, (body, charset) -> XMLResponseParser.parseListSetsResponse(
+                new InputStreamReader(body, charset)));
+    }
+
+    public ListIdentifiersResponse getListIdentifiersRequest(String request) {
+        return transport.execute(request, (body, charset) -> XMLResponseParser.parseListIdentifiersResponse(
+                new InputStreamReader(body, charset)));
     }
 }
@@ -0,0 +1,376 @@
+package eu.europeana.downloads;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpClient;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP transport for all OAI-PMH requests.
+ * The underlying client is pluggable :
+ *   jdk    : java.net.http client with keep-alive connection pooling (pool sized to the harvest threads).
+ *            HTTP/2 is negotiated for https servers that support it, plain http servers use HTTP/1.1
+ *   simple : the JDK HttpURLConnection based client, which was used before
+ *
+ * Every request has a connect timeout, a read timeout (until the response headers are received) and a
+ * page timeout, which is the maximum time to receive a complete response page. When the page timeout
+ * expires the response is closed, so a stalled socket can no longer block a harvest thread.
+ *
+ * If compression is enabled gzip and deflate encoded responses are accepted and decompressed while
+ * they are read.
+ *
+ * Optionally the number of requests in flight is controlled by an {@link AdaptiveConcurrencyLimiter}.
+ * In that case a 503 response with a Retry-After header is retried after the requested time.
+ */
+public class OAIPMHTransport {
+
+    private static final Logger LOG = LogManager.getLogger(OAIPMHTransport.class);
+
+    static final String JDK_CLIENT = "jdk";
+    static final String SIMPLE_CLIENT = "simple";
+
+    private static final String POOL_SIZE_PROPERTY = "jdk.httpclient.connectionPoolSize";
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    private static final int MAX_RETRY_AFTER_ATTEMPTS = 3;
+    private static final long MAX_RETRY_AFTER = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Reads the (decompressed) body of a response
+     */
+    @FunctionalInterface
+    public interface BodyReader<T> {
+        T read(InputStream body, Charset charset) throws IOException;
+    }
+
+    private final RestTemplate restTemplate;
+
+    private final long pageTimeout;
+
+    private final boolean compression;
+
+    private final TransportStats stats = new TransportStats();
+
+    private final ScheduledThreadPoolExecutor pageTimeoutWatchdog;
+
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    private PageArchive pageArchive;
+
+    /**
+     * @param oaipmhServer   url of the oai server, used to decide which HTTP version to use
+     * @param clientType     jdk or simple
+     * @param poolSize       maximum number of keep-alive connections (usually the number of harvest threads)
+     * @param connectTimeout connect timeout in seconds
+     * @param readTimeout    read timeout in seconds
+     * @param pageTimeout    maximum time in seconds to receive a complete page, 0 means no limit
+     * @param compression    true if gzip and deflate encoded responses should be requested
+     */
+    public OAIPMHTransport(String oaipmhServer, String clientType, int poolSize, int connectTimeout, int readTimeout,
+                           int pageTimeout, boolean compression) {
+        this.restTemplate = new RestTemplate(createRequestFactory(oaipmhServer, clientType, poolSize, connectTimeout, readTimeout));
+        this.pageTimeout = TimeUnit.SECONDS.toMillis(pageTimeout);
+        this.compression = compression;
+        this.pageTimeoutWatchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "oai-page-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pageTimeoutWatchdog.setRemoveOnCancelPolicy(true);
+        LOG.info("Using {} HTTP client. Connection pool size {}, connect timeout {} s, read timeout {} s, page timeout {} s, compression {}",
+                clientType, poolSize, connectTimeout, readTimeout, pageTimeout, compression);
+    }
+
+    private static ClientHttpRequestFactory createRequestFactory(String oaipmhServer, String clientType, int poolSize,
+                                                                 int connectTimeout, int readTimeout) {
+        if (StringUtils.equalsIgnoreCase(clientType, SIMPLE_CLIENT)) {
+            SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+            factory.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeout));
+            factory.setReadTimeout((int) TimeUnit.SECONDS.toMillis(readTimeout));
+            return factory;
+        }
+        if (!StringUtils.equalsIgnoreCase(clientType, JDK_CLIENT)) {
+            LOG.warn("Unknown http-client {}, using {}", clientType, JDK_CLIENT);
+        }
+        // the pool size is read once by the JDK, so it must be set before the first client is created
+        if (System.getProperty(POOL_SIZE_PROPERTY) == null) {
+            System.setProperty(POOL_SIZE_PROPERTY, String.valueOf(Math.max(poolSize, 1)));
+        }
+        // HTTP/2 is negotiated with ALPN, for plain http we don't want the client to attempt h2c upgrades
+        HttpClient.Version version = StringUtils.startsWithIgnoreCase(oaipmhServer, "https")
+                ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(Duration.ofSeconds(connectTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        JdkClientHttpRequestFactory factory = new JdkClientHttpRequestFactory(httpClient);
+        factory.setReadTimeout(Duration.ofSeconds(readTimeout));
+        return factory;
+    }
+
+    /**
+     * Executes a GET request and lets the bodyReader read the response.
+     * Errors are thrown as the usual RestTemplate exceptions (e.g. HttpServerErrorException, ResourceAccessException)
+     *
+     * @param request    request url
+     * @param bodyReader reads the response body
+     * @return the value returned by the bodyReader
+     */
+    public <T> T execute(String request, BodyReader<T> bodyReader) {
+        if (pageArchive != null && pageArchive.isReplay()) {
+            return replay(request, bodyReader);
+        }
+        if (concurrencyLimiter == null) {
+            return doExecute(request, bodyReader);
+        }
+        int attempt = 1;
+        while (true) {
+            acquireSlot();
+            long start = System.currentTimeMillis();
+            try {
+                T result = doExecute(request, bodyReader);
+                concurrencyLimiter.onSuccess(System.currentTimeMillis() - start);
+                return result;
+            } catch (HttpServerErrorException e) {
+                long retryAfter = e.getStatusCode().value() == HttpStatus.SERVICE_UNAVAILABLE.value()
+                        ? getRetryAfter(e.getResponseHeaders()) : -1;
+                concurrencyLimiter.onOverload(retryAfter);
+                if (retryAfter < 0 || attempt >= MAX_RETRY_AFTER_ATTEMPTS) {
+                    throw e;
+                }
+                // the limiter holds back the next attempt until the retry-after time has passed
+                LOG.warn("Server unavailable, retrying request {} after {} ms (attempt {})", request, retryAfter, attempt);
+                attempt++;
+            } catch (ResourceAccessException e) {
+                concurrencyLimiter.onOverload(-1);
+                throw e;
+            } catch (RuntimeException e) {
+                concurrencyLimiter.onIgnore();
+                throw e;
+            }
+        }
+    }
+
+    private <T> T doExecute(String request, BodyReader<T> bodyReader) {
+        long start = System.nanoTime();
+        boolean success = false;
+        stats.requestStarted();
+        try {
+            T result = restTemplate.execute(request, HttpMethod.GET, this::acceptEncoding,
+                    response -> extractWithTimeout(response, body -> readBody(request, body, bodyReader)));
+            success = true;
+            return result;
+        } finally {
+            stats.requestFinished(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Reads the page of the request from the page archive instead of the server
+     */
+    private <T> T replay(String request, BodyReader<T> bodyReader) {
+        long start = System.nanoTime();
+        boolean success = false;
+        stats.requestStarted();
+        CountingInputStream wire = null;
+        CountingInputStream decoded = null;
+        try (InputStream page = pageArchive.openPage(request)) {
+            wire = new CountingInputStream(page);
+            decoded = new CountingInputStream(new GZIPInputStream(wire, DECODE_BUFFER_SIZE));
+            T result = bodyReader.read(decoded, StandardCharsets.UTF_8);
+            success = true;
+            return result;
+        } catch (FileNotFoundException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new ResourceAccessException("Error reading archived page for request " + request, e);
+        } finally {
+            if (wire != null) {
+                stats.bytesReceived(wire.getCount(), decoded == null ? 0 : decoded.getCount());
+            }
+            stats.requestFinished(System.nanoTime() - start, success);
+        }
+    }
+
+    private void acquireSlot() {
+        try {
+            concurrencyLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceAccessException("Interrupted while waiting to send a request");
+        }
+    }
+
+    /**
+     * @return the time in ms to wait according to the Retry-After header (in seconds or a http date),
+     * -1 if there is no valid header
+     */
+    private static long getRetryAfter(HttpHeaders headers) {
+        String retryAfter = headers == null ? null : headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (StringUtils.isBlank(retryAfter)) {
+            return -1;
+        }
+        long wait;
+        if (StringUtils.isNumeric(retryAfter.trim())) {
+            wait = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } else {
+            try {
+                wait = headers.getFirstDate(HttpHeaders.RETRY_AFTER) - System.currentTimeMillis();
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Invalid Retry-After header {}", retryAfter);
+                return -1;
+            }
+        }
+        return Math.min(Math.max(wait, 0), MAX_RETRY_AFTER);
+    }
+
+    /**
+     * Executes a GET request and returns the response body as String
+     */
+    public String getForString(String request) {
+        return execute(request, StreamUtils::copyToString);
+    }
+
+    public TransportStats getStats() {
+        return stats;
+    }
+
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public PageArchive getPageArchive() {
+        return pageArchive;
+    }
+
+    public void setPageArchive(PageArchive pageArchive) {
+        this.pageArchive = pageArchive;
+    }
+
+    private <T> T extractWithTimeout(ClientHttpResponse response, ResponseExtractor<T> extractor) throws IOException {
+        if (pageTimeout <= 0) {
+            return extractor.extractData(response);
+        }
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> watchdog = pageTimeoutWatchdog.schedule(() -> {
+            timedOut.set(true);
+            // closing the response aborts the exchange, which unblocks the thread reading the body
+            response.close();
+        }, pageTimeout, TimeUnit.MILLISECONDS);
+        try {
+            return extractor.extractData(response);
+        } catch (IOException e) {
+            if (timedOut.get()) {
+                throw new SocketTimeoutException("Page not received within " + pageTimeout + " ms");
+            }
+            throw e;
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    private void acceptEncoding(ClientHttpRequest request) {
+        if (compression) {
+            request.getHeaders().set(HttpHeaders.ACCEPT_ENCODING, GZIP + ", " + DEFLATE);
+        }
+    }
+
+    /**
+     * Decompresses the body if needed and counts the bytes received and the bytes after decompression.
+     * In capture mode the decoded body is stored in the page archive as well.
+     */
+    private <T> T readBody(String request, ClientHttpResponse response, BodyReader<T> bodyReader) throws IOException {
+        CountingInputStream wire = new CountingInputStream(response.getBody());
+        CountingInputStream decoded = wire;
+        PageArchive.PageCapture capture = null;
+        try {
+            decoded = new CountingInputStream(decode(wire, response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)));
+            Charset charset = getCharset(response);
+            if (pageArchive == null || !pageArchive.isCapture()) {
+                return bodyReader.read(decoded, charset);
+            }
+            if (!StandardCharsets.UTF_8.equals(charset)) {
+                LOG.warn("Response of request {} is {} encoded, archived pages are replayed as UTF-8", request, charset);
+            }
+            capture = pageArchive.capture(request, decoded);
+            T result = bodyReader.read(capture, charset);
+            capture.complete();
+            return result;
+        } finally {
+            if (capture != null) {
+                capture.discard();
+            }
+            stats.bytesReceived(wire.getCount(), decoded.getCount());
+        }
+    }
+
+    private static InputStream decode(InputStream body, String contentEncoding) throws IOException {
+        if (StringUtils.equalsIgnoreCase(contentEncoding, GZIP) || StringUtils.equalsIgnoreCase(contentEncoding, "x-gzip")) {
+            return new GZIPInputStream(body, DECODE_BUFFER_SIZE);
+        }
+        if (StringUtils.equalsIgnoreCase(contentEncoding, DEFLATE)) {
+            // deflate should be zlib wrapped, but some servers send raw deflate data
+            PushbackInputStream pushback = new PushbackInputStream(body, 2);
+            int cmf = pushback.read();
+            int flg = pushback.read();
+            if (flg != -1) {
+                pushback.unread(flg);
+            }
+            if (cmf != -1) {
+                pushback.unread(cmf);
+            }
+            boolean zlib = (cmf & 0x0F) == 8 && flg != -1 && ((cmf << 8) | flg) % 31 == 0;
+            return new InflaterInputStream(pushback, new Inflater(!zlib), DECODE_BUFFER_SIZE);
+        }
+        return body;
+    }
+
+    /**
+     * @return charset of the response, UTF-8 if none is specified
+     */
+    private static Charset getCharset(ClientHttpResponse response) {
+        MediaType contentType = response.getHeaders().getContentType();
+        if (contentType != null && contentType.getCharset() != null) {
+            return contentType.getCharset();
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
@@ -0,0 +1,214 @@
+package eu.europeana.downloads;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local archive of the raw OAI-PMH response pages. Every page is stored gzip compressed in its own file,
+ * named after the SHA-256 hash of the request (without the server url), so a run can be replayed from
+ * the archive against any server url.
+ *
+ * In capture mode the pages are stored while they are received from the server. In replay mode the
+ * pages are read from the archive and no requests are sent to the server, which makes it possible to
+ * regenerate all the zips (e.g. after a fix in the TTL conversion) at disk speed.
+ */
+public class PageArchive {
+
+    private static final Logger LOG = LogManager.getLogger(PageArchive.class);
+
+    private static final String PAGE_EXTENSION = ".xml.gz";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    public enum Mode {
+        OFF, CAPTURE, REPLAY
+    }
+
+    private final Path folder;
+
+    private final Mode mode;
+
+    private final String oaipmhServer;
+
+    private final AtomicLong pagesCaptured = new AtomicLong();
+
+    private final AtomicLong pagesReplayed = new AtomicLong();
+
+    /**
+     * @param folder       folder of the archive, created if it doesn't exist
+     * @param mode         capture or replay
+     * @param oaipmhServer url of the server, stripped from the requests to create the page names
+     */
+    public PageArchive(String folder, Mode mode, String oaipmhServer) throws IOException {
+        this.folder = Paths.get(folder);
+        this.mode = mode;
+        this.oaipmhServer = oaipmhServer;
+        Files.createDirectories(this.folder);
+        LOG.info("Page archive in {} mode at {}", mode, this.folder.toAbsolutePath());
+    }
+
+    /**
+     * @param mode value of the page-archive-mode property
+     * @return the mode, OFF if no mode is specified
+     */
+    public static Mode getMode(String mode) {
+        if (StringUtils.isBlank(mode)) {
+            return Mode.OFF;
+        }
+        return Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public boolean isCapture() {
+        return mode == Mode.CAPTURE;
+    }
+
+    public boolean isReplay() {
+        return mode == Mode.REPLAY;
+    }
+
+    /**
+     * Opens the archived page of the request
+     *
+     * @return the gzip compressed page
+     * @throws FileNotFoundException if the page is not in the archive
+     */
+    InputStream openPage(String request) throws IOException {
+        Path page = getPage(request);
+        if (!Files.exists(page)) {
+            throw new FileNotFoundException("No archived page " + page.getFileName() + " for request " + request);
+        }
+        pagesReplayed.incrementAndGet();
+        return Files.newInputStream(page);
+    }
+
+    /**
+     * Stores the page of the request while it is read. The page is only added to the archive when
+     * {@link PageCapture#complete()} is called, so the archive never contains partially received pages.
+     *
+     * @param request request url
+     * @param body    decoded response body
+     */
+    PageCapture capture(String request, InputStream body) throws IOException {
+        return new PageCapture(getPage(request), body);
+    }
+
+    private Path getPage(String request) {
+        String key = StringUtils.removeStart(request, oaipmhServer);
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return folder.resolve(HexFormat.of().formatHex(hash) + PAGE_EXTENSION);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    public long getPagesCaptured() {
+        return pagesCaptured.get();
+    }
+
+    public long getPagesReplayed() {
+        return pagesReplayed.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s mode, %d pages captured, %d pages replayed", mode, getPagesCaptured(), getPagesReplayed());
+    }
+
+    /**
+     * Copies everything that is read from the body into a temporary file of the archive
+     */
+    class PageCapture extends FilterInputStream {
+
+        private final Path page;
+        private final Path temp;
+        private final OutputStream out;
+        private boolean closed;
+
+        private PageCapture(Path page, InputStream body) throws IOException {
+            super(body);
+            this.page = page;
+            this.temp = Files.createTempFile(folder, page.getFileName().toString(), TEMP_EXTENSION);
+            this.out = new GZIPOutputStream(Files.newOutputStream(temp));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                out.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                out.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes have to be in the archive as well
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads the rest of the body (a parser may stop reading at the end of the document) and adds the
+         * page to the archive
+         */
+        void complete() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // drain
+            }
+            closed = true;
+            out.close();
+            Files.move(temp, page, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            pagesCaptured.incrementAndGet();
+        }
+
+        /**
+         * Removes the temporary file if the page was not completed
+         */
+        void discard() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete temporary archive file {}", temp, e);
+            }
+        }
+    }
+}
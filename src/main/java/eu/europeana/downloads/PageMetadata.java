@@ -0,0 +1,43 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.RDFMetadata;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Metadata of a record that was split from the page bytes by {@link ListRecordsPageScanner}. Besides the
+ * metadata string (needed for the TTL conversion) it keeps the byte range of the metadata in the page,
+ * so the XML entry can be written straight from the page without encoding the string again.
+ */
+class PageMetadata extends RDFMetadata {
+
+    private final byte[] page;
+    private final int offset;
+    private final int length;
+
+    /**
+     * @param page   UTF-8 bytes of the page
+     * @param offset start of the metadata content in the page
+     * @param length length of the metadata content
+     */
+    PageMetadata(byte[] page, int offset, int length) {
+        this.page = page;
+        this.offset = offset;
+        this.length = length;
+        // decode the declaration and the content in one go, instead of decoding and then concatenating
+        byte[] value = new byte[ZipUtility.XML_DECLARATION_BYTES.length + length];
+        System.arraycopy(ZipUtility.XML_DECLARATION_BYTES, 0, value, 0, ZipUtility.XML_DECLARATION_BYTES.length);
+        System.arraycopy(page, offset, value, ZipUtility.XML_DECLARATION_BYTES.length, length);
+        setMetadata(new String(value, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the xml declaration and the metadata bytes of the page
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(ZipUtility.XML_DECLARATION_BYTES);
+        out.write(page, offset, length);
+    }
+}
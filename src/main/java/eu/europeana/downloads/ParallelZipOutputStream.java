@@ -0,0 +1,249 @@
+package eu.europeana.downloads;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip output stream that compresses the entries on a pool of threads. The content of an entry is collected
+ * until the entry is closed and then compressed by the pool, while the caller continues with the next entry.
+ * The compressed entries are added to the zip as they are, in the order in which they were written (like the
+ * scatter/gather zip creation of commons-compress, but without waiting for all entries).
+ *
+ * It is a {@link ZipOutputStream}, so it can be used by all code that writes zips. The zip itself is written by
+ * a commons-compress {@link ZipArchiveOutputStream}, which adds zip64 records when a set has more than 65535
+ * records like the JDK does. Entries of another zip can be added as they are, without compressing them again.
+ * Without threads the entries are compressed on the calling thread when they are closed.
+ */
+class ParallelZipOutputStream extends ZipOutputStream {
+
+    // the deflater of a pool thread is reused for all entries it compresses
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<>();
+
+    private record Compressed(byte[] data, long crc, long size) {
+    }
+
+    private record PendingEntry(ZipArchiveEntry entry, Future<Compressed> compressed) {
+    }
+
+    private final ZipArchiveOutputStream zip;
+    private final ExecutorService deflaters;
+    private final int maxPending;
+    private final Deque<PendingEntry> pending = new ArrayDeque<>();
+    // the zip archive stream accepts duplicate names, the JDK zip output stream rejects them
+    private final Set<String> names = new HashSet<>();
+
+    private int level;
+    private ZipArchiveEntry current;
+    private ByteArrayOutputStream content;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * @param out        output stream of the zip
+     * @param deflaters  threads that compress the entries, null to compress them on the calling thread
+     * @param level      compression level
+     * @param maxPending maximum number of entries that wait for their compression
+     */
+    ParallelZipOutputStream(OutputStream out, ExecutorService deflaters, int level, int maxPending) {
+        super(OutputStream.nullOutputStream());
+        // the sizes of the compressed entries are known, so the zip is written without seeking back in the file
+        this.zip = new ZipArchiveOutputStream(out);
+        this.deflaters = deflaters;
+        this.level = level;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry e) throws IOException {
+        if (current != null) {
+            closeEntry();
+        }
+        if (!names.add(e.getName())) {
+            throw new ZipException(ZipUtility.DUPLICATE_ENTRY + ": " + e.getName());
+        }
+        current = new ZipArchiveEntry(e.getName());
+        current.setMethod(ZipEntry.DEFLATED);
+        current.setTime(e.getTime() == -1 ? System.currentTimeMillis() : e.getTime());
+        content = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkEntry();
+        content.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkEntry();
+        content.write(b, off, len);
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        if (current == null) {
+            return;
+        }
+        ByteArrayOutputStream entryContent = content;
+        int entryLevel = level;
+        // the unused deflater of the zip output stream compresses the entries on the calling thread
+        Future<Compressed> compressed = deflaters == null
+                ? CompletableFuture.completedFuture(compress(entryContent, entryLevel, def))
+                : deflaters.submit(() -> compress(entryContent, entryLevel, getDeflater(entryLevel)));
+        pending.add(new PendingEntry(current, compressed));
+        current = null;
+        content = null;
+        writeCompressed(maxPending);
+    }
+
+    /**
+     * Adds an entry of another zip after the entries written before it, without decompressing and compressing it
+     *
+     * @param entry entry of the other zip, with its sizes and crc
+     * @param raw   compressed content of the entry
+     */
+    void addRawEntry(ZipArchiveEntry entry, InputStream raw) throws IOException {
+        closeEntry();
+        if (!names.add(entry.getName())) {
+            throw new ZipException(ZipUtility.DUPLICATE_ENTRY + ": " + entry.getName());
+        }
+        writeCompressed(0);
+        zip.addRawArchiveEntry(entry, raw);
+    }
+
+    /**
+     * Between entries, writes the closed entries to the output stream, waiting for their compression. The writer
+     * of an entry flushes its characters into the open entry, that doesn't wait for the entries before it.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current == null) {
+            writeCompressed(0);
+            zip.flush();
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        writeCompressed(0);
+        zip.finish();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } catch (IOException | RuntimeException e) {
+            // a failed finish is not repeated when the zip is closed, the compressions are not needed anymore
+            finished = true;
+            for (PendingEntry entry : pending) {
+                entry.compressed().cancel(true);
+            }
+            try {
+                zip.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            } finally {
+                def.end();
+            }
+            throw e;
+        }
+        zip.close();
+        // releases the unused deflater of the zip output stream, without the finish of DeflaterOutputStream.close()
+        def.end();
+    }
+
+    /**
+     * Adds the compressed entries to the zip, in order. Waits for compressions while more than maxPending
+     * entries are not written.
+     */
+    private void writeCompressed(int maxPending) throws IOException {
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().compressed().isDone())) {
+            PendingEntry head = pending.poll();
+            Compressed compressed = getCompressed(head.compressed());
+            ZipArchiveEntry entry = head.entry();
+            entry.setCrc(compressed.crc());
+            entry.setSize(compressed.size());
+            entry.setCompressedSize(compressed.data().length);
+            zip.addRawArchiveEntry(entry, new ByteArrayInputStream(compressed.data()));
+        }
+    }
+
+    private static Compressed getCompressed(Future<Compressed> compressed) throws IOException {
+        try {
+            return compressed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a zip entry");
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing a zip entry", e.getCause());
+        }
+    }
+
+    private static Deflater getDeflater(int level) {
+        Deflater deflater = DEFLATERS.get();
+        if (deflater == null) {
+            // zip entries contain raw deflate data, without the zlib header
+            deflater = new Deflater(level, true);
+            DEFLATERS.set(deflater);
+        }
+        return deflater;
+    }
+
+    private static Compressed compress(ByteArrayOutputStream content, int level, Deflater deflater) {
+        deflater.reset();
+        deflater.setLevel(level);
+        byte[] input = content.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(input);
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            output.write(buffer, 0, n);
+        }
+        return new Compressed(output.toByteArray(), crc.getValue(), input.length);
+    }
+
+    private void checkEntry() throws IOException {
+        if (current == null) {
+            throw new IOException("No current zip entry");
+        }
+    }
+}
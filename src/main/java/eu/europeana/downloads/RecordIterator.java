@@ -0,0 +1,87 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.ListRecords;
+import eu.europeana.oaipmh.model.Record;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Returns the records of a ListRecords harvest one at a time, the pages and resumption tokens are
+ * handled by a {@link ResumptionPageFetcher}. The iterator doesn't keep the records it returned, so a
+ * record can be garbage collected as soon as the caller is done with it, even if the rest of its page
+ * isn't written yet.
+ *
+ * When all records of a page are returned and the caller asks for the next record, the page listener is
+ * called first. At that moment all records of the page are processed by the caller, which makes it the
+ * place to count the records of the page and to store the resumption token of the next page.
+ */
+class RecordIterator implements Iterator<Record>, Closeable {
+
+    private final ResumptionPageFetcher pages;
+
+    private final Consumer<ListRecords> pageListener;
+
+    private final String setIdentifier;
+
+    private ListRecords page;
+
+    private int index;
+
+    /**
+     * @param oaipmhServer      oai client
+     * @param resumptionRequest creates the request for a resumption token value
+     * @param firstPage         first page of the harvest
+     * @param depth             number of pages to fetch ahead, 0 to fetch pages on request
+     * @param setIdentifier     set that is harvested
+     * @param pageListener      called when all records of a page are processed
+     */
+    RecordIterator(OAIPMHServiceClient oaipmhServer, Function<String, String> resumptionRequest, ListRecords firstPage,
+                   int depth, String setIdentifier, Consumer<ListRecords> pageListener) {
+        this.page = firstPage;
+        this.pageListener = pageListener;
+        this.setIdentifier = setIdentifier;
+        this.pages = new ResumptionPageFetcher(oaipmhServer, resumptionRequest, firstPage.getResumptionToken(), depth, setIdentifier);
+    }
+
+    /**
+     * @throws RuntimeException the exception that occurred while requesting the next page
+     */
+    @Override
+    public boolean hasNext() {
+        while (page != null && index >= page.getRecords().size()) {
+            ListRecords done = page;
+            page = null;
+            pageListener.accept(done);
+            try {
+                page = pages.next();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while harvesting set " + setIdentifier, e);
+            }
+            index = 0;
+        }
+        return page != null;
+    }
+
+    @Override
+    public Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<Record> records = page.getRecords();
+        Record record = records.get(index);
+        // the page keeps its size for the listener, but not the record
+        records.set(index++, null);
+        return record;
+    }
+
+    @Override
+    public void close() {
+        pages.close();
+    }
+}
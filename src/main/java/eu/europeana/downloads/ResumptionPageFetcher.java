@@ -0,0 +1,129 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.ListRecords;
+import eu.europeana.oaipmh.model.ResumptionToken;
+import eu.europeana.oaipmh.model.response.ListRecordsResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Fetches the pages of a ListRecords harvest by following the resumption tokens.
+ *
+ * With a prefetch depth of 0 every page is requested when {@link #next()} is called.
+ * Otherwise a background thread requests the next page as soon as the resumption token of the previous
+ * page is parsed, while the caller is still writing the records of earlier pages. At most 'depth' pages
+ * are fetched ahead. Pages are always returned in the order of the resumption tokens.
+ */
+class ResumptionPageFetcher implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(ResumptionPageFetcher.class);
+
+    // marks the end of the harvest in the queue
+    private static final Object END = new Object();
+
+    private final OAIPMHServiceClient oaipmhServer;
+
+    private final Function<String, String> resumptionRequest;
+
+    private ResumptionToken resumptionToken;
+
+    private final BlockingQueue<Object> pages = new LinkedBlockingQueue<>();
+
+    private Semaphore lookahead;
+
+    private Thread prefetchThread;
+
+    private boolean finished;
+
+    /**
+     * @param oaipmhServer      oai client
+     * @param resumptionRequest creates the request for a resumption token value
+     * @param resumptionToken   resumption token of the first page, null if there is only one page
+     * @param depth             number of pages to fetch ahead, 0 to fetch pages on request
+     * @param setIdentifier     set that is harvested, used to name the prefetch thread
+     */
+    ResumptionPageFetcher(OAIPMHServiceClient oaipmhServer, Function<String, String> resumptionRequest,
+                          ResumptionToken resumptionToken, int depth, String setIdentifier) {
+        this.oaipmhServer = oaipmhServer;
+        this.resumptionRequest = resumptionRequest;
+        this.resumptionToken = resumptionToken;
+        if (depth > 0 && resumptionToken != null) {
+            lookahead = new Semaphore(depth);
+            // sets harvested in virtual threads prefetch in a virtual thread as well
+            Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+            prefetchThread = builder.name("prefetch-" + setIdentifier).start(this::prefetch);
+        }
+    }
+
+    /**
+     * @return the records of the next page or null if there are no more pages
+     * @throws RuntimeException the exception that occurred while requesting the page
+     */
+    ListRecords next() throws InterruptedException {
+        if (finished) {
+            return null;
+        }
+        if (prefetchThread == null) {
+            if (resumptionToken == null) {
+                finished = true;
+                return null;
+            }
+            ListRecords page = fetch(resumptionToken);
+            resumptionToken = page.getResumptionToken();
+            return page;
+        }
+        Object page = pages.take();
+        lookahead.release();
+        if (page == END) {
+            finished = true;
+            return null;
+        }
+        if (page instanceof RuntimeException exception) {
+            finished = true;
+            throw exception;
+        }
+        return (ListRecords) page;
+    }
+
+    private void prefetch() {
+        ResumptionToken token = resumptionToken;
+        try {
+            while (token != null) {
+                lookahead.acquire();
+                ListRecords page = fetch(token);
+                pages.put(page);
+                token = page.getResumptionToken();
+            }
+            pages.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.debug("Prefetching interrupted");
+        } catch (RuntimeException e) {
+            // handed over to the harvesting thread, which decides if the set is retried
+            pages.add(e);
+        }
+    }
+
+    private ListRecords fetch(ResumptionToken token) {
+        String request = resumptionRequest.apply(token.getValue());
+        ListRecordsResponse response = oaipmhServer.getListRecordRequest(request);
+        ListRecords page = response.getListRecords();
+        if (page == null) {
+            throw new IllegalStateException("No ListRecords in response for request " + request);
+        }
+        return page;
+    }
+
+    @Override
+    public void close() {
+        if (prefetchThread != null) {
+            prefetchThread.interrupt();
+        }
+    }
+}
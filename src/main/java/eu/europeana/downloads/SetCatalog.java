@@ -0,0 +1,69 @@
+package eu.europeana.downloads;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * All the sets of the OAI-PMH server, retrieved with one complete ListSets request per run and shared by
+ * all verbs of the run. The sets are kept in a hash set, so comparing them with the sets harvested before
+ * doesn't depend on the number of sets on both sides.
+ */
+public class SetCatalog {
+
+    private final List<String> sets;
+
+    private final Set<String> index;
+
+    public SetCatalog(List<String> sets) {
+        this.sets = Collections.unmodifiableList(new ArrayList<>(sets));
+        this.index = new HashSet<>(sets);
+    }
+
+    /**
+     * @return all sets in the order of the ListSets response
+     */
+    public List<String> getSets() {
+        return sets;
+    }
+
+    public boolean contains(String set) {
+        return index.contains(set);
+    }
+
+    public int size() {
+        return sets.size();
+    }
+
+    /**
+     * @param harvestedSets sets harvested in earlier runs
+     * @return the harvested sets that are not on the server anymore (de-published sets)
+     */
+    public List<String> getDeletedSets(Collection<String> harvestedSets) {
+        List<String> deleted = new ArrayList<>();
+        for (String set : harvestedSets) {
+            if (!index.contains(set)) {
+                deleted.add(set);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @param harvestedSets sets harvested in earlier runs
+     * @return the sets of the server that were never harvested
+     */
+    public List<String> getNewSets(Collection<String> harvestedSets) {
+        Set<String> harvested = new HashSet<>(harvestedSets);
+        List<String> newSets = new ArrayList<>();
+        for (String set : sets) {
+            if (!harvested.contains(set)) {
+                newSets.add(set);
+            }
+        }
+        return newSets;
+    }
+}
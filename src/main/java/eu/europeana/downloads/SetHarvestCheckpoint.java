@@ -0,0 +1,78 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.ResumptionToken;
+
+import java.util.Date;
+
+/**
+ * Progress of a set harvest : the resumption token of the next page that still has to be written to the zips
+ * and the number of records written so far. It allows a failed harvest to continue from that page instead
+ * of starting the set from scratch.
+ */
+public class SetHarvestCheckpoint {
+
+    private final String setIdentifier;
+    private final String recordsTobeDownloaded;
+    private ResumptionToken resumptionToken;
+    private int recordsDownloaded;
+    private long recordsHarvested;
+
+    public SetHarvestCheckpoint(String setIdentifier, String recordsTobeDownloaded) {
+        this.setIdentifier = setIdentifier;
+        this.recordsTobeDownloaded = recordsTobeDownloaded;
+    }
+
+    /**
+     * Called when all the records of a page are written
+     *
+     * @param nextToken         resumption token of the next page, null if it was the last page
+     * @param recordsDownloaded number of records written in the zips
+     * @param recordsHarvested  number of records received from the server
+     */
+    void pageWritten(ResumptionToken nextToken, int recordsDownloaded, long recordsHarvested) {
+        this.resumptionToken = nextToken;
+        this.recordsDownloaded = recordsDownloaded;
+        this.recordsHarvested = recordsHarvested;
+    }
+
+    /**
+     * @return true if there is a resumption token that has not expired yet
+     */
+    public boolean canResume() {
+        if (resumptionToken == null || resumptionToken.getValue() == null || resumptionToken.getValue().isEmpty()) {
+            return false;
+        }
+        Date expirationDate = resumptionToken.getExpirationDate();
+        return expirationDate == null || expirationDate.after(new Date());
+    }
+
+    public String getSetIdentifier() {
+        return setIdentifier;
+    }
+
+    public String getRecordsTobeDownloaded() {
+        return recordsTobeDownloaded;
+    }
+
+    public ResumptionToken getResumptionToken() {
+        return resumptionToken;
+    }
+
+    public int getRecordsDownloaded() {
+        return recordsDownloaded;
+    }
+
+    public long getRecordsHarvested() {
+        return recordsHarvested;
+    }
+
+    @Override
+    public String toString() {
+        return "SetHarvestCheckpoint{" +
+                "setIdentifier='" + setIdentifier + '\'' +
+                ", resumptionToken=" + (resumptionToken == null ? null : resumptionToken.getValue()) +
+                ", recordsDownloaded=" + recordsDownloaded +
+                ", recordsHarvested=" + recordsHarvested +
+                '}';
+    }
+}
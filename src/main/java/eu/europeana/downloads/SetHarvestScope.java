@@ -0,0 +1,92 @@
+package eu.europeana.downloads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the set harvesting tasks as one unit of work. When a task fails or the thread waiting for the
+ * tasks is interrupted, all other tasks are cancelled (their threads are interrupted), so no task keeps
+ * harvesting after the run has ended. It works like StructuredTaskScope.ShutdownOnFailure, which is
+ * still a preview API in Java 21.
+ *
+ * The number of tasks that run at the same time can be limited with a semaphore, which is used when
+ * every task runs in its own virtual thread. The semaphore is fair, so the tasks start roughly in the order in
+ * which they were forked.
+ */
+class SetHarvestScope<T> implements AutoCloseable {
+
+    private final CompletionService<T> completionService;
+
+    private final Semaphore permits;
+
+    private final List<Future<T>> futures = new ArrayList<>();
+
+    /**
+     * @param executor      executes the tasks
+     * @param maxConcurrent maximum number of tasks that run at the same time, 0 for no limit
+     */
+    SetHarvestScope(ExecutorService executor, int maxConcurrent) {
+        this.completionService = new ExecutorCompletionService<>(executor);
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+    }
+
+    /**
+     * Starts the task
+     */
+    void fork(Callable<T> task) {
+        if (permits == null) {
+            futures.add(completionService.submit(task));
+            return;
+        }
+        futures.add(completionService.submit(() -> {
+            permits.acquire();
+            try {
+                return task.call();
+            } finally {
+                permits.release();
+            }
+        }));
+    }
+
+    /**
+     * Waits until all tasks are finished. If a task fails or the thread is interrupted, all other tasks
+     * are cancelled
+     *
+     * @return the futures of the tasks, in the order in which they were started
+     */
+    List<Future<T>> join() throws InterruptedException, ExecutionException {
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<T> done = completionService.take();
+                if (!done.isCancelled()) {
+                    done.get();
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            cancelAll();
+            throw e;
+        }
+        return futures;
+    }
+
+    private void cancelAll() {
+        for (Future<T> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Cancels the tasks that are not finished yet
+     */
+    @Override
+    public void close() {
+        cancelAll();
+    }
+}
@@ -0,0 +1,231 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.ListIdentifiers;
+import eu.europeana.oaipmh.model.response.ListIdentifiersResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Orders the sets of a run largest first in a queue that all harvesting threads take their sets from,
+ * so the largest sets are started first and the threads that finish early pick up the remaining sets
+ * (longest processing time first scheduling).
+ *
+ * The size of a set is the harvest time of the set in earlier runs, which is stored in the
+ * setHarvestTimes.csv file of the sets folder. Sets without a harvest time can optionally be probed
+ * with a ListIdentifiers request for their number of records.
+ */
+public class SetScheduler extends BaseQuery {
+
+    private static final Logger LOG = LogManager.getLogger(SetScheduler.class);
+
+    private static final String SEPARATOR = ",";
+
+    private static final int MAX_PROBE_THREADS = 10;
+
+    private final String directoryLocation;
+
+    private final String metadataPrefix;
+
+    // set -> {harvest time in ms, number of records}
+    private final Map<String, long[]> harvestTimes;
+
+    private long predictedTime;
+
+    public SetScheduler(String directoryLocation, String metadataPrefix) {
+        this.directoryLocation = directoryLocation;
+        this.metadataPrefix = metadataPrefix;
+        this.harvestTimes = readHarvestTimes(getHarvestTimesFile(directoryLocation));
+    }
+
+    /**
+     * Orders the sets largest first and logs the predicted time to harvest them
+     *
+     * @param oaipmhServer oai client, used to probe the sets
+     * @param sets         sets to harvest
+     * @param probe        true to request the number of records of the sets without a harvest time
+     * @param workers      number of sets that are harvested at the same time
+     * @return the queue of sets, largest set first
+     */
+    public Queue<String> schedule(OAIPMHServiceClient oaipmhServer, List<String> sets, boolean probe, int workers) {
+        Map<String, Long> records = new HashMap<>();
+        for (String set : sets) {
+            long[] harvestTime = harvestTimes.get(set);
+            if (harvestTime != null) {
+                records.put(set, harvestTime[1]);
+            }
+        }
+        if (probe) {
+            records.putAll(probeRecords(oaipmhServer, sets.stream().filter(s -> !harvestTimes.containsKey(s)).toList(), workers));
+        }
+
+        // estimate the harvest time of sets without a known time from their number of records. Without any
+        // harvest times the sets are ordered by their number of records and no harvest time can be predicted
+        double msPerRecord = getMsPerRecord();
+        boolean timesKnown = msPerRecord > 0;
+        Map<String, Long> estimates = new HashMap<>();
+        long knownTimes = 0;
+        long knownTotal = 0;
+        for (String set : sets) {
+            long[] harvestTime = harvestTimes.get(set);
+            if (harvestTime != null) {
+                estimates.put(set, harvestTime[0]);
+                knownTimes++;
+                knownTotal += harvestTime[0];
+            } else if (records.containsKey(set)) {
+                estimates.put(set, timesKnown ? Math.round(records.get(set) * msPerRecord) : records.get(set));
+            }
+        }
+        // sets we know nothing about are considered average sets
+        long average = knownTimes == 0 ? 0 : knownTotal / knownTimes;
+        for (String set : sets) {
+            estimates.putIfAbsent(set, average);
+        }
+
+        List<String> ordered = new ArrayList<>(sets);
+        ordered.sort(Comparator.comparing((String set) -> estimates.get(set)).reversed());
+        predictedTime = timesKnown ? getMakespan(ordered, estimates, workers) : 0;
+        if (predictedTime > 0) {
+            LOG.info("Scheduled {} sets largest first ({} with a known harvest time, {} probed). Predicted harvest time {} with {} threads",
+                    ordered.size(), knownTimes, records.size() - knownTimes, ProgressLogger.getDurationText(predictedTime), workers);
+        } else {
+            LOG.info("Scheduled {} sets ({} probed), no harvest times known yet to predict the harvest time",
+                    ordered.size(), records.size());
+        }
+        return new ConcurrentLinkedQueue<>(ordered);
+    }
+
+    /**
+     * @return the predicted time in ms to harvest all the scheduled sets, 0 if unknown
+     */
+    public long getPredictedTime() {
+        return predictedTime;
+    }
+
+    /**
+     * Stores the harvest times of the sets that were harvested successfully, the times of the other sets are kept
+     *
+     * @param setHarvestTimes harvest time in ms per set
+     * @param setRecords      number of records per set
+     */
+    public void saveHarvestTimes(Map<String, Long> setHarvestTimes, Map<String, Long> setRecords) {
+        for (Map.Entry<String, Long> entry : setHarvestTimes.entrySet()) {
+            Long records = setRecords.get(entry.getKey());
+            if (records != null) {
+                harvestTimes.put(entry.getKey(), new long[]{entry.getValue(), records});
+            }
+        }
+        File file = getHarvestTimesFile(directoryLocation);
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, long[]> entry : new TreeMap<>(harvestTimes).entrySet()) {
+                bw.write(entry.getKey() + SEPARATOR + entry.getValue()[0] + SEPARATOR + entry.getValue()[1]);
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            LOG.error("Error writing the {} file", Constants.SET_HARVEST_TIMES_FILENAME, e);
+        }
+    }
+
+    private double getMsPerRecord() {
+        long time = 0;
+        long records = 0;
+        for (long[] harvestTime : harvestTimes.values()) {
+            time += harvestTime[0];
+            records += harvestTime[1];
+        }
+        return records == 0 ? 0 : (double) time / records;
+    }
+
+    /**
+     * Simulates the harvest : every set goes to the thread that is free first
+     *
+     * @return time until the last thread is finished
+     */
+    private static long getMakespan(List<String> ordered, Map<String, Long> estimates, int workers) {
+        PriorityQueue<Long> threadsFreeAt = new PriorityQueue<>();
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            threadsFreeAt.add(0L);
+        }
+        long makespan = 0;
+        for (String set : ordered) {
+            long finished = threadsFreeAt.poll() + estimates.get(set);
+            makespan = Math.max(makespan, finished);
+            threadsFreeAt.add(finished);
+        }
+        return makespan;
+    }
+
+    /**
+     * Requests the first ListIdentifiers page of every set, the complete list size is the number of records
+     */
+    private Map<String, Long> probeRecords(OAIPMHServiceClient oaipmhServer, List<String> sets, int workers) {
+        Map<String, Long> records = new ConcurrentHashMap<>();
+        if (sets.isEmpty()) {
+            return records;
+        }
+        LOG.info("Probing the size of {} sets without a known harvest time", sets.size());
+        try (ExecutorService probes = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, MAX_PROBE_THREADS)))) {
+            for (String set : sets) {
+                probes.execute(() -> {
+                    Long size = probeRecords(oaipmhServer, set);
+                    if (size != null) {
+                        records.put(set, size);
+                    }
+                });
+            }
+        }
+        return records;
+    }
+
+    private Long probeRecords(OAIPMHServiceClient oaipmhServer, String set) {
+        String request = getBaseRequest(oaipmhServer.getOaipmhServer(), Constants.LIST_IDENTIFIERS_VERB) +
+                String.format(METADATA_PREFIX_PARAMETER, metadataPrefix) +
+                String.format(SET_PARAMETER, set);
+        try {
+            ListIdentifiersResponse response = oaipmhServer.getListIdentifiersRequest(request);
+            ListIdentifiers listIdentifiers = response == null ? null : response.getListIdentifiers();
+            if (listIdentifiers == null) {
+                return null;
+            }
+            if (listIdentifiers.getResumptionToken() != null) {
+                return listIdentifiers.getResumptionToken().getCompleteListSize();
+            }
+            return listIdentifiers.getHeaders() == null ? 0L : listIdentifiers.getHeaders().size();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to probe the size of set {} : {}", set, e.getMessage());
+            return null;
+        }
+    }
+
+    private static File getHarvestTimesFile(String directoryLocation) {
+        return new File(directoryLocation + Constants.PATH_SEPERATOR + Constants.SET_HARVEST_TIMES_FILENAME);
+    }
+
+    private static Map<String, long[]> readHarvestTimes(File file) {
+        Map<String, long[]> harvestTimes = new HashMap<>();
+        if (!file.exists()) {
+            LOG.info("{} file doesn't exist. Sets are scheduled without harvest times", Constants.SET_HARVEST_TIMES_FILENAME);
+            return harvestTimes;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = StringUtils.split(line, SEPARATOR);
+                if (values.length == 3 && StringUtils.isNumeric(values[1]) && StringUtils.isNumeric(values[2])) {
+                    harvestTimes.put(values[0], new long[]{Long.parseLong(values[1]), Long.parseLong(values[2])});
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading the {} file", Constants.SET_HARVEST_TIMES_FILENAME, e);
+        }
+        return harvestTimes;
+    }
+}
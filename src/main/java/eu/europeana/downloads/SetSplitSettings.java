@@ -0,0 +1,42 @@
+package eu.europeana.downloads;
+
+import java.time.Instant;
+
+/**
+ * Settings to harvest large sets in datestamp windows
+ */
+public class SetSplitSettings {
+
+    private final long threshold;
+
+    private final int windows;
+
+    private final Instant earliestDatestamp;
+
+    /**
+     * @param threshold         sets with more records are harvested in windows, 0 to never split sets
+     * @param windows           number of windows to harvest at the same time
+     * @param earliestDatestamp start of the datestamp range that is split when no from date is specified
+     */
+    public SetSplitSettings(long threshold, int windows, String earliestDatestamp) {
+        this.threshold = threshold;
+        this.windows = windows;
+        this.earliestDatestamp = DatestampWindowHarvester.parse(earliestDatestamp);
+    }
+
+    /**
+     * @param records number of records in the set
+     * @return true if the set should be harvested in windows
+     */
+    public boolean isSplit(long records) {
+        return threshold > 0 && windows > 1 && earliestDatestamp != null && records > threshold;
+    }
+
+    public int getWindows() {
+        return windows;
+    }
+
+    public Instant getEarliestDatestamp() {
+        return earliestDatestamp;
+    }
+}
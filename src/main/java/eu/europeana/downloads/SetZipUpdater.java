@@ -0,0 +1,117 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.Header;
+import eu.europeana.oaipmh.model.ListIdentifiers;
+import eu.europeana.oaipmh.model.response.ListIdentifiersResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Updates the zips of a set that changed since the last harvest, instead of harvesting all records of the set
+ * again. Only the records changed since the last harvest are harvested, into separate changes zips. The entries
+ * of the previous zips that didn't change are copied as they are, without converting and compressing them again.
+ *
+ * The headers of the server have no deleted status, so deleted records are not in the harvest of the changes.
+ * The identifiers of the set are listed to find the records that were deleted. The number of records of the set
+ * doesn't tell if records were deleted, a deleted and an added record leave the number unchanged.
+ */
+class SetZipUpdater extends BaseQuery {
+
+    private static final Logger LOG = LogManager.getLogger(SetZipUpdater.class);
+
+    private final OAIPMHServiceClient oaipmhServer;
+    private final String metadataPrefix;
+    private final String setIdentifier;
+
+    SetZipUpdater(OAIPMHServiceClient oaipmhServer, String metadataPrefix, String setIdentifier) {
+        this.oaipmhServer = oaipmhServer;
+        this.metadataPrefix = metadataPrefix;
+        this.setIdentifier = setIdentifier;
+    }
+
+    /**
+     * @return path of the zip with the changed records of the zip
+     */
+    static String getChangesZipName(String zipName) {
+        return zipName + Constants.CHANGES_EXTENSION;
+    }
+
+    /**
+     * Updates the XML and TTL zip with the records of their changes zips and writes their md5 files. Both
+     * updated zips are written before they replace the zips, so a failed update leaves the zips of the last
+     * harvest unchanged.
+     *
+     * @return number of records in the updated zips
+     */
+    long update(String xmlZipName, String ttlZipName) throws IOException {
+        String xmlChanges = getChangesZipName(xmlZipName);
+        Set<String> previous = ZipUtility.getEntryNames(xmlZipName);
+        Set<String> changed = ZipUtility.getEntryNames(xmlChanges);
+        Set<String> deleted = getDeletedEntries(previous);
+
+        Set<String> deletedTurtle = new HashSet<>();
+        for (String name : deleted) {
+            deletedTurtle.add(StringUtils.removeEnd(name, Constants.XML_EXTENSION) + Constants.TTL_EXTENSION);
+        }
+        String ttlChanges = getChangesZipName(ttlZipName);
+        long records = ZipUtility.patchZip(xmlZipName, xmlChanges, deleted);
+        try {
+            ZipUtility.patchZip(ttlZipName, ttlChanges, deletedTurtle);
+        } catch (IOException e) {
+            ZipUtility.deletePartialZip(xmlZipName);
+            throw e;
+        }
+        ZipUtility.commitZip(xmlZipName);
+        ZipUtility.commitZip(ttlZipName);
+        Files.delete(Paths.get(xmlChanges));
+        Files.delete(Paths.get(ttlChanges));
+        LOG.info("Updated the zips of set {} with {} changed and {} deleted records, {} records", setIdentifier,
+                changed.size(), deleted.size(), records);
+        return records;
+    }
+
+    /**
+     * @param previous entries of the previous XML zip
+     * @return names of the XML entries of the records that are not in the set anymore
+     */
+    private Set<String> getDeletedEntries(Set<String> previous) {
+        String request = getBaseRequest(oaipmhServer.getOaipmhServer(), Constants.LIST_IDENTIFIERS_VERB) +
+                String.format(METADATA_PREFIX_PARAMETER, metadataPrefix) +
+                String.format(SET_PARAMETER, setIdentifier);
+        ListIdentifiers page = getListIdentifiers(request);
+        if (page == null) {
+            // a set without records is de-published, the zips are deleted instead of updated
+            throw new IllegalStateException("No identifiers for set " + setIdentifier);
+        }
+        Set<String> deleted = new HashSet<>(previous);
+        while (true) {
+            for (Header header : page.getHeaders()) {
+                deleted.remove(ZipUtility.getEntryName(header.getIdentifier(), Constants.XML_FILE));
+            }
+            if (page.getResumptionToken() == null || StringUtils.isEmpty(page.getResumptionToken().getValue())) {
+                return deleted;
+            }
+            page = getListIdentifiers(getBaseRequest(oaipmhServer.getOaipmhServer(), Constants.LIST_IDENTIFIERS_VERB) +
+                    String.format(RESUMPTION_TOKEN_PARAMETER, page.getResumptionToken().getValue()));
+            if (page == null) {
+                // without all identifiers records of the set would be dropped
+                throw new IllegalStateException("Incomplete list of identifiers of set " + setIdentifier);
+            }
+        }
+    }
+
+    private ListIdentifiers getListIdentifiers(String request) {
+        ListIdentifiersResponse response = oaipmhServer.getListIdentifiersRequest(request);
+        if (response == null) {
+            throw new IllegalStateException("No response for " + request);
+        }
+        return response.getListIdentifiers();
+    }
+}
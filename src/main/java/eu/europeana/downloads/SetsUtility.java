@@ -70,7 +70,7 @@ public class SetsUtility {
         List<String> result = new ArrayList<>();
         try (Stream<Path> walk = Files.walk(Paths.get(directoryLocation))) {
             result = walk.map(x -> StringUtils.substring(x.toString(), directoryLocation.length() + 1))
-                    .filter(f -> f.endsWith(Constants.MD5_EXTENSION)).collect(Collectors.toList());
+                    .filter(f -> f.endsWith(Constants.CHECKSUM_EXTENSION)).collect(Collectors.toList());
             // remove  .zip from the values
             result = result.stream().map(s -> s.replaceAll(Constants.CHECKSUM_EXTENSION, ""))
                     .collect(Collectors.toList());
@@ -85,17 +85,14 @@ public class SetsUtility {
      * Compares with the existing list of dataset with the previously downloaded list of dataset
      * By default we will compare with XML folder to get the last harvested Sets
      *
+     * @param setCatalog        all sets of the server
      * @param directoryLocation XML folder location by default
      * @return list of all de-published dataset
      */
-    public static List<String> getSetsToBeDeleted(OAIPMHServiceClient oaipmhServer, String directoryLocation, int logProgressInterval) {
-        LOG.info("Executing ListSet for De-published Datasets ");
-        ListSetsQuery setsQuery = new ListSetsQuery(logProgressInterval);
-        List<String> lastHarvestedSets = getLastHarvestedSets(directoryLocation);
-        List<String> currentSetsList = setsQuery.getSets(oaipmhServer, null, null);
-        //remove all the sets which are present in server and are available in database
-        lastHarvestedSets.removeAll(currentSetsList);
-        return lastHarvestedSets;
+    public static List<String> getSetsToBeDeleted(SetCatalog setCatalog, String directoryLocation) {
+        LOG.info("Checking {} sets of the server for De-published Datasets ", setCatalog.size());
+        //keep the sets which are not present in server anymore
+        return setCatalog.getDeletedSets(getLastHarvestedSets(directoryLocation));
     }
 
     /**
@@ -112,6 +109,7 @@ public class SetsUtility {
                         + Constants.PATH_SEPERATOR + set + Constants.CHECKSUM_EXTENSION;
                 Path md5sumFile = Paths.get(fileName);
                 Files.delete(md5sumFile);
+                Files.deleteIfExists(Paths.get(StringUtils.removeEnd(fileName, Constants.MD5_EXTENSION) + Constants.SHA256_EXTENSION));
             } catch (IOException e) {
                LOG.error("Error deleting md5 file {} in {} ", set, fileFormat);
             }
@@ -238,6 +236,8 @@ public class SetsUtility {
        String datasetCount = "{\"type\": \"section\",\"text\": {\"type\": \"mrkdwn\",\"text\": \"%s datasets were processed\"}}";
        String overViewDetails ="{\"type\":\"section\",\"text\":{\"type\":\"mrkdwn\",\"text\":\"Status Overview: \\n new: %s, changed: %s, unchanged: %s, reharvested: %s, deleted: %s\"}}";
        String reportLocation ="{\"type\":\"section\",\"text\":{\"type\":\"mrkdwn\",\"text\":\"Full report <%s|here>\"}}";
+       String transferDetails ="{\"type\":\"section\",\"text\":{\"type\":\"mrkdwn\",\"text\":\"Data received: %s (%s decoded)\"}}";
+       String turtleCacheDetails ="{\"type\":\"section\",\"text\":{\"type\":\"mrkdwn\",\"text\":\"Turtle cache: %s hits, %s misses (%s hit rate)\"}}";
        String tableHeader = "{\"type\":\"section\",\"text\":{\"type\":\"mrkdwn\",\"text\":\"*Dataset                  Status           Total Records    Failed Records*\"}}";
        String tableRow = "{\"type\":\"section\",\"text\":{\"type\":\"mrkdwn\",\"text\":\"``` %s %s  %s %s ```\"}}";
        String rowDivider = "{\"type\": \"divider\"}";
@@ -253,6 +253,15 @@ public class SetsUtility {
            valueCountMap.getOrDefault(ZipFileStatus.DELETED,0)
            )).append(comma);
 
+       result.append(String.format(transferDetails, TransportStats.toMegaBytes(status.getWireBytes()),
+           TransportStats.toMegaBytes(status.getDecodedBytes()))).append(comma);
+
+       long turtleConversions = status.getTurtleCacheHits() + status.getTurtleCacheMisses();
+       if (turtleConversions > 0) {
+           result.append(String.format(turtleCacheDetails, status.getTurtleCacheHits(), status.getTurtleCacheMisses(),
+               String.format("%.1f%%", status.getTurtleCacheHits() * 100D / turtleConversions))).append(comma);
+       }
+
        result.append(String.format(reportLocation,reportFile)).append(comma);
 
        if (!status.getSetsFileStatusMap().isEmpty()){
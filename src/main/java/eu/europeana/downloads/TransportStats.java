@@ -0,0 +1,100 @@
+package eu.europeana.downloads;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run-wide counters of the OAI-PMH HTTP transport, used to report the number of pages fetched,
+ * the throughput, the peak number of requests that were in flight at the same time and the number of
+ * bytes received on the wire and after decompression.
+ */
+public class TransportStats {
+
+    private final long startTime = System.currentTimeMillis();
+
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    void requestStarted() {
+        int current = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(current, Math::max);
+    }
+
+    void requestFinished(long latencyNanos, boolean success) {
+        inFlight.decrementAndGet();
+        if (success) {
+            pages.incrementAndGet();
+            totalLatencyNanos.addAndGet(latencyNanos);
+        } else {
+            failures.incrementAndGet();
+        }
+    }
+
+    void bytesReceived(long wire, long decoded) {
+        wireBytes.addAndGet(wire);
+        decodedBytes.addAndGet(decoded);
+    }
+
+    /**
+     * @return number of bytes received from the server (compressed if compression is used)
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * @return number of bytes after decompression
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    public long getPages() {
+        return pages.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * @return average time in ms to fetch a complete page
+     */
+    public long getAverageLatency() {
+        long count = pages.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / count / 1_000_000;
+    }
+
+    /**
+     * @return number of successfully fetched pages per second since the transport was created
+     */
+    public double getPagesPerSecond() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed == 0 ? 0 : pages.get() * 1000D / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d pages (%.2f pages/sec, avg %d ms/page), %d failed requests, %d in flight, peak %d in flight, " +
+                        "received %s (%s decoded)",
+                getPages(), getPagesPerSecond(), getAverageLatency(), getFailures(), getInFlight(), getPeakInFlight(),
+                toMegaBytes(getWireBytes()), toMegaBytes(getDecodedBytes()));
+    }
+
+    static String toMegaBytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024D * 1024D));
+    }
+}
@@ -0,0 +1,246 @@
+package eu.europeana.downloads;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Disk cache of the turtle of the records, kept between runs. Most records of a run are the same as in
+ * the previous run, the turtle of a record with exactly the same RDF/XML is copied from the cache instead
+ * of converting the record with Jena again.
+ *
+ * The turtle of a record is stored in a file named after the SHA-256 hash of the RDF/XML, in a subfolder
+ * per turtle writer (the writers generate a different layout) and per first two characters of the hash.
+ * When the cache is larger than the maximum size, the files that were used least recently are deleted at
+ * the end of the run. The key doesn't change when the converter changes, a cache that is refreshed converts
+ * all records again and replaces their turtle in the cache.
+ */
+public class TurtleCache {
+
+    private static final Logger LOG = LogManager.getLogger(TurtleCache.class);
+
+    private static final String TURTLE_EXTENSION = ".ttl";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private final Path folder;
+
+    private final long maxSize;
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    private volatile boolean refresh;
+
+    private record CachedTurtle(Path path, long size, FileTime lastUsed) {
+    }
+
+    /**
+     * @param folder  folder of the cache, created if it doesn't exist
+     * @param writer  turtle writer that generates the turtle (model or stream)
+     * @param maxSize maximum size of the cache in bytes
+     */
+    public TurtleCache(String folder, String writer, long maxSize) throws IOException {
+        this.folder = Paths.get(folder, writer);
+        this.maxSize = maxSize;
+        Files.createDirectories(this.folder);
+        try (Stream<Path> files = Files.walk(this.folder)) {
+            size.set(files.filter(TurtleCache::isTurtle).mapToLong(TurtleCache::getSize).sum());
+        }
+        deleteTempFiles();
+        LOG.info("Turtle cache at {} with {}", this.folder.toAbsolutePath(), TransportStats.toMegaBytes(size.get()));
+    }
+
+    /**
+     * @return the hash of the RDF/XML of a record, the key of its turtle in the cache
+     */
+    static String getKey(String metadata) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(metadata.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    /**
+     * @param refresh true to convert all records again and replace their turtle in the cache, like after a fix
+     *                of the converter
+     */
+    void setRefresh(boolean refresh) {
+        this.refresh = refresh;
+    }
+
+    /**
+     * @return the UTF-8 turtle of the key, null if it is not in the cache or the cache is refreshed
+     */
+    byte[] get(String key) {
+        if (refresh) {
+            misses.incrementAndGet();
+            return null;
+        }
+        Path file = getFile(key);
+        try {
+            byte[] turtle = Files.readAllBytes(file);
+            // the last modified time is the last time the turtle was used, the oldest files are evicted first
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return turtle;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+        } catch (IOException e) {
+            LOG.warn("Unable to read {} from the turtle cache", file, e);
+            misses.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Adds the turtle of the key to the cache. The file is written under a temporary name first, so other
+     * threads never read a partially written file. The size of the cache only grows when the file is new, another
+     * thread may have added the same record already. A refreshed cache replaces the file.
+     */
+    void put(String key, byte[] turtle) {
+        Path file = getFile(key);
+        try {
+            Files.createDirectories(file.getParent());
+            long replaced = refresh ? getSize(file) : 0;
+            if (!refresh && Files.exists(file)) {
+                return;
+            }
+            Path temp = Files.createTempFile(file.getParent(), key, TEMP_EXTENSION);
+            Files.write(temp, turtle);
+            if (refresh) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                // the link fails instead of replacing the file of a thread that added the same record in the meantime
+                try {
+                    Files.createLink(file, temp);
+                } catch (FileAlreadyExistsException e) {
+                    return;
+                } finally {
+                    Files.delete(temp);
+                }
+            }
+            size.addAndGet(turtle.length - replaced);
+        } catch (IOException e) {
+            LOG.warn("Unable to add {} to the turtle cache", file, e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache is not larger than the maximum size
+     */
+    public void evict() {
+        if (size.get() <= maxSize) {
+            return;
+        }
+        List<CachedTurtle> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.filter(TurtleCache::isTurtle).forEach(file -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    files.add(new CachedTurtle(file, attributes.size(), attributes.lastModifiedTime()));
+                } catch (IOException e) {
+                    LOG.debug("Turtle cache file {} disappeared", file);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            LOG.error("Error listing the files of the turtle cache {}", folder, e);
+            return;
+        }
+        long total = files.stream().mapToLong(CachedTurtle::size).sum();
+        files.sort(Comparator.comparing(CachedTurtle::lastUsed));
+        for (CachedTurtle file : files) {
+            if (total <= maxSize) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(file.path());
+                total -= file.size();
+                evicted.incrementAndGet();
+            } catch (IOException e) {
+                LOG.warn("Unable to delete {} from the turtle cache", file.path(), e);
+            }
+        }
+        size.set(total);
+        LOG.info("Evicted {} records from the turtle cache, {} left", evicted.get(), TransportStats.toMegaBytes(total));
+    }
+
+    /**
+     * Deletes the temporary files of a run that was stopped while adding turtle to the cache
+     */
+    private void deleteTempFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.filter(file -> file.getFileName().toString().endsWith(TEMP_EXTENSION)).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOG.warn("Unable to delete temporary turtle cache file {}", file, e);
+                }
+            });
+        }
+    }
+
+    private Path getFile(String key) {
+        return folder.resolve(key.substring(0, 2)).resolve(key + TURTLE_EXTENSION);
+    }
+
+    private static boolean isTurtle(Path file) {
+        return file.getFileName().toString().endsWith(TURTLE_EXTENSION);
+    }
+
+    private static long getSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return percentage of the records that were copied from the cache
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : hits.get() * 100D / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d evicted, %s of %s",
+                getHits(), getMisses(), getHitRate(), evicted.get(), TransportStats.toMegaBytes(size.get()),
+                TransportStats.toMegaBytes(maxSize));
+    }
+}
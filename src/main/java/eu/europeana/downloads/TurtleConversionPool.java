@@ -0,0 +1,43 @@
+package eu.europeana.downloads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Threads that convert the metadata of the records to turtle for all sets of a run. Converting with Jena is the
+ * most CPU heavy step of a harvest, while the harvesting threads mostly wait for the OAI-PMH server. With the
+ * pool the number of harvesting threads can be tuned for the server and the number of conversion threads
+ * for the number of processors.
+ */
+public class TurtleConversionPool implements AutoCloseable {
+
+    private final ExecutorService executor;
+
+    private final int queueSize;
+
+    /**
+     * @param threads   number of conversion threads
+     * @param queueSize maximum number of records per set that wait for their conversion
+     */
+    public TurtleConversionPool(int threads, int queueSize) {
+        this.executor = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("ttl-conversion-", 1).daemon().factory());
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * @return the turtle of the metadata, converted by one of the threads of the pool
+     */
+    Future<String> convert(String metadata) {
+        return executor.submit(() -> ZipUtility.dataToWriteInZip(metadata, Constants.TTL_FILE));
+    }
+
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
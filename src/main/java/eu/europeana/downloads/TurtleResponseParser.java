@@ -4,13 +4,29 @@ import eu.europeana.api.commons.utils.TurtleRecordWriter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.atlas.io.IndentedWriter;
+import org.apache.jena.irix.IRIs;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParserRegistry;
+import org.apache.jena.riot.RIOT;
+import org.apache.jena.riot.ReaderRIOT;
+import org.apache.jena.riot.system.ErrorHandlerFactory;
+import org.apache.jena.riot.system.FactoryRDF;
+import org.apache.jena.riot.system.RiotLib;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWrapper;
+import org.apache.jena.riot.writer.WriterStreamRDFBlocks;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -18,11 +34,80 @@ public class TurtleResponseParser {
 
     private static final Logger LOG = LogManager.getLogger(TurtleResponseParser.class);
 
+    // namespaces of the EDM records, declared at the start of every streamed turtle file
+    private static final Map<String, String> EDM_PREFIXES = new LinkedHashMap<>();
+
+    static {
+        EDM_PREFIXES.put("rdf", "http://www.w3.org/1999/02/22-rdf-syntax-ns#");
+        EDM_PREFIXES.put("rdfs", "http://www.w3.org/2000/01/rdf-schema#");
+        EDM_PREFIXES.put("dc", "http://purl.org/dc/elements/1.1/");
+        EDM_PREFIXES.put("dcterms", "http://purl.org/dc/terms/");
+        EDM_PREFIXES.put("edm", "http://www.europeana.eu/schemas/edm/");
+        EDM_PREFIXES.put("ore", "http://www.openarchives.org/ore/terms/");
+        EDM_PREFIXES.put("skos", "http://www.w3.org/2004/02/skos/core#");
+        EDM_PREFIXES.put("foaf", "http://xmlns.com/foaf/0.1/");
+        EDM_PREFIXES.put("owl", "http://www.w3.org/2002/07/owl#");
+        EDM_PREFIXES.put("wgs84_pos", "http://www.w3.org/2003/01/geo/wgs84_pos#");
+        EDM_PREFIXES.put("rdaGr2", "http://rdvocab.info/ElementsGr2/");
+        EDM_PREFIXES.put("cc", "http://creativecommons.org/ns#");
+        EDM_PREFIXES.put("odrl", "http://www.w3.org/ns/odrl/2/");
+        EDM_PREFIXES.put("svcs", "http://rdfs.org/sioc/services#");
+        EDM_PREFIXES.put("doap", "http://usefulinc.com/ns/doap#");
+        EDM_PREFIXES.put("ebucore", "http://www.ebu.ch/metadata/ontologies/ebucore/ebucore#");
+        EDM_PREFIXES.put("xsd", "http://www.w3.org/2001/XMLSchema#");
+    }
+
+    // every thread reuses its parser and buffers, the buffers grow to the largest record
+    private static final ThreadLocal<TurtleStreamer> STREAMER = ThreadLocal.withInitial(TurtleStreamer::new);
+
+    private static volatile boolean streaming;
+
+    private static volatile TurtleCache cache;
+
     private TurtleResponseParser() {
         //adding a private constructor to hide implicit public one
     }
 
+    /**
+     * @param stream true to convert the records with the RIOT streaming parser and writer, false to read them
+     *               into a Jena model first and write the model with the {@link TurtleRecordWriter}
+     */
+    static void setStreaming(boolean stream) {
+        streaming = stream;
+    }
+
+    static boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param turtleCache cache of the turtle of earlier runs, null to convert all records
+     */
+    static void setCache(TurtleCache turtleCache) {
+        cache = turtleCache;
+    }
+
     public static String generateTurtle(String data) {
+        if (streaming) {
+            return streamTurtle(data).toString(StandardCharsets.UTF_8);
+        }
+        TurtleCache turtleCache = cache;
+        if (turtleCache == null) {
+            return modelTurtle(data);
+        }
+        String key = TurtleCache.getKey(data);
+        byte[] cached = turtleCache.get(key);
+        if (cached != null) {
+            return new String(cached, StandardCharsets.UTF_8);
+        }
+        String turtle = modelTurtle(data);
+        if (!turtle.isEmpty()) {
+            turtleCache.put(key, turtle.getBytes(StandardCharsets.UTF_8));
+        }
+        return turtle;
+    }
+
+    private static String modelTurtle(String data) {
         try (OutputStream outputStream = new ByteArrayOutputStream();
              InputStream rdfInput = new ByteArrayInputStream(data.getBytes());
              TurtleRecordWriter writer = new TurtleRecordWriter(outputStream)) {
@@ -35,6 +120,99 @@ public class TurtleResponseParser {
         return "";
     }
 
+    /**
+     * Converts the RDF/XML to turtle while it is parsed, the triples go from the parser to the turtle writer
+     * without a model in between. The turtle is written in a buffer of the thread, so it can be copied in the
+     * zip as it is and nothing is written in the zip when the metadata can't be parsed.
+     *
+     * @return the UTF-8 turtle in the buffer of the thread, only valid until the next conversion of the thread
+     */
+    static ByteArrayOutputStream streamTurtle(String data) {
+        TurtleStreamer streamer = STREAMER.get();
+        TurtleCache turtleCache = cache;
+        String key = null;
+        if (turtleCache != null) {
+            key = TurtleCache.getKey(data);
+            byte[] cached = turtleCache.get(key);
+            if (cached != null) {
+                return streamer.copy(cached);
+            }
+        }
+        ByteArrayOutputStream turtle;
+        try {
+            turtle = streamer.convert(data);
+        } catch (RuntimeException e) {
+            // the writer may still hold turtle of the failed record
+            STREAMER.remove();
+            throw e;
+        }
+        if (key != null) {
+            turtleCache.put(key, turtle.toByteArray());
+        }
+        return turtle;
+    }
+
+    /**
+     * Parser and turtle writer of a thread. A new RIOT parser creates node and IRI caches and the turtle stream
+     * writer a large write buffer for every record, which is more than converting a record takes itself.
+     */
+    private static final class TurtleStreamer {
+
+        // reading the metadata into a model resolves relative IRIs against the system base as well
+        private static final String BASE = IRIs.getBaseStr();
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        // the turtle writer writes one char at a time
+        private final Writer chars = new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+        private final FactoryRDF factory = RiotLib.factoryRDF();
+        private final ReaderRIOT reader = RDFParserRegistry.getFactory(Lang.RDFXML).create(Lang.RDFXML,
+                RiotLib.createParserProfile(factory, ErrorHandlerFactory.getDefaultErrorHandler(), IRIs.resolver(BASE), true));
+
+        ByteArrayOutputStream convert(String data) {
+            bytes.reset();
+            // blank node labels are only the same node within one record
+            factory.reset();
+            StreamRDF turtle = new PrefixFilter(new WriterStreamRDFBlocks(new IndentedWriter(chars) {}, RIOT.getContext()));
+            turtle.start();
+            EDM_PREFIXES.forEach(turtle::prefix);
+            // the same exceptions for invalid RDF as reading the metadata into a model
+            reader.read(new StringReader(data), BASE, null, turtle, RIOT.getContext());
+            turtle.finish();
+            try {
+                chars.flush();
+            } catch (IOException e) {
+                // writing in a byte array doesn't fail
+                throw new UncheckedIOException(e);
+            }
+            return bytes;
+        }
+
+        ByteArrayOutputStream copy(byte[] turtle) {
+            bytes.reset();
+            bytes.writeBytes(turtle);
+            return bytes;
+        }
+    }
+
+    /**
+     * Drops the prefixes of the record that are already declared with the same namespace
+     */
+    private static final class PrefixFilter extends StreamRDFWrapper {
+
+        private final Map<String, String> declared = new HashMap<>();
+
+        PrefixFilter(StreamRDF other) {
+            super(other);
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+            if (!iri.equals(declared.put(prefix, iri))) {
+                super.prefix(prefix, iri);
+            }
+        }
+    }
+
     //TODO remove the temp code once the issue is fixed. See EA-2397 and EA-2066
     /**
      * Temporary fix for Riot Exception for Bad URI in the metadata
@@ -0,0 +1,177 @@
+package eu.europeana.downloads;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the TTL zips and their checksums from the XML zips of the sets folder, without any requests to
+ * the OAI-PMH server. The zips are converted at the same time and the records of a zip are converted by a
+ * {@link TurtleConversionPool}, so all processors are used, also when only a few large zips are left.
+ *
+ * The records are converted again even if their turtle is in the turtle cache, the TTL zips are generated after
+ * a fix of the converter. The new turtle replaces the turtle in the cache, so the next harvests copy it.
+ */
+@Component
+public class TurtleZipGenerator extends BaseQuery implements OAIPMHQuery {
+
+    private static final Logger LOG = LogManager.getLogger(TurtleZipGenerator.class);
+
+    @Value("${sets-folder}")
+    private String directoryLocation;
+
+    @Value("${log-progress-interval}")
+    private int logProgressInterval;
+
+    @Value("${derive-ttl-threads}")
+    private int threads;
+
+    @Value("${ttl-conversion-queue}")
+    private int conversionQueue;
+
+    private final AtomicLong records = new AtomicLong();
+
+    @Override
+    public String getVerbName() {
+        return Constants.DERIVE_TTL_VERB;
+    }
+
+    @Override
+    public void execute(OAIPMHServiceClient oaipmhServer) {
+        List<String> zips = getXmlZips();
+        if (zips.isEmpty()) {
+            LOG.info("No XML zips in {}, no TTL zips generated", SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE));
+            return;
+        }
+        int workers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        LOG.info("Generating the TTL zips of {} XML zips with {} threads", zips.size(), workers);
+        long start = System.currentTimeMillis();
+        records.set(0);
+        ProgressLogger logger = new ProgressLogger("TTL zips", zips.size(), logProgressInterval);
+        int generated = 0;
+        List<String> failed = new ArrayList<>();
+        TurtleCache cache = oaipmhServer.getTurtleCache();
+        if (cache != null) {
+            cache.setRefresh(true);
+        }
+        try (TurtleConversionPool pool = new TurtleConversionPool(workers, conversionQueue);
+             ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, zips.size()))) {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (String zip : zips) {
+                results.add(executor.submit(() -> generateTurtleZip(zip, pool)));
+            }
+            for (int i = 0; i < zips.size(); i++) {
+                if (Boolean.TRUE.equals(results.get(i).get())) {
+                    generated++;
+                } else {
+                    failed.add(zips.get(i));
+                }
+                logger.logProgress(generated + failed.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while generating the TTL zips", e);
+        } catch (ExecutionException e) {
+            LOG.error("Error generating the TTL zips", e);
+        } finally {
+            if (cache != null) {
+                cache.setRefresh(false);
+            }
+        }
+        long time = System.currentTimeMillis() - start;
+        LOG.info("Generated {} TTL zips with {} records in {} ({} records/sec)", generated, records.get(),
+                ProgressLogger.getDurationText(time), time == 0 ? records.get() : records.get() * 1000 / time);
+        if (!failed.isEmpty()) {
+            LOG.error("Unable to generate the TTL zips of {}", failed);
+        }
+    }
+
+    /**
+     * Converts all entries of the XML zip of the set into a new TTL zip. The TTL zip is written under a temporary
+     * name, so the TTL zip of an earlier run is only replaced when the new one is complete
+     *
+     * @return true if the TTL zip was generated
+     */
+    private boolean generateTurtleZip(String zip, TurtleConversionPool pool) {
+        String xmlZipName = SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE) + Constants.PATH_SEPERATOR + zip;
+        String ttlZipName = SetsUtility.getFolderName(directoryLocation, Constants.TTL_FILE) + Constants.PATH_SEPERATOR + zip;
+        Path partial = Paths.get(ttlZipName + Constants.PARTIAL_EXTENSION);
+        long converted = 0;
+        try (ZipFile xmlZip = new ZipFile(xmlZipName)) {
+            try (ZipOutputStream ttlZout = ZipUtility.openZip(partial.toString(), false, Constants.TTL_FILE);
+                 OutputStreamWriter writer = new OutputStreamWriter(ttlZout, StandardCharsets.UTF_8);
+                 TurtleZipWriter ttlWriter = new TurtleZipWriter(ttlZout, writer, pool)) {
+                Enumeration<? extends ZipEntry> entries = xmlZip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.getName().endsWith(Constants.XML_EXTENSION)) {
+                        LOG.warn("Skipping entry {} of {}, not a record", entry.getName(), zip);
+                        continue;
+                    }
+                    try (InputStream in = xmlZip.getInputStream(entry)) {
+                        String metadata = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                        ttlWriter.write(StringUtils.removeEnd(entry.getName(), Constants.XML_EXTENSION) + Constants.TTL_EXTENSION, metadata);
+                    }
+                    converted++;
+                }
+            }
+            ZipUtility.commitZip(ttlZipName);
+            records.addAndGet(converted);
+            LOG.debug("Generated {} with {} records", ttlZipName, converted);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error generating the TTL zip of {}", zip, e);
+            try {
+                Files.deleteIfExists(partial);
+                ZipChecksums.delete(partial.toString());
+            } catch (IOException ex) {
+                LOG.warn("Unable to delete {}", partial, ex);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return names of the zips in the XML folder of the sets folder, largest zip first so the largest zips
+     * don't end up last on a single thread
+     */
+    private List<String> getXmlZips() {
+        Path xmlFolder = Paths.get(SetsUtility.getFolderName(directoryLocation, Constants.XML_FILE));
+        if (!Files.isDirectory(xmlFolder)) {
+            LOG.error("NO such directory exists {}", xmlFolder);
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(xmlFolder)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(Constants.ZIP_EXTENSION))
+                    .sorted(Comparator.comparingLong((Path file) -> file.toFile().length()).reversed())
+                    .map(file -> file.getFileName().toString())
+                    .toList();
+        } catch (IOException e) {
+            LOG.error("Error listing the XML zips in {}", xmlFolder, e);
+            return new ArrayList<>();
+        }
+    }
+}
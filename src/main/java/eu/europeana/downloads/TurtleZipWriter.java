@@ -0,0 +1,138 @@
+package eu.europeana.downloads;
+
+import eu.europeana.oaipmh.model.Record;
+
+import java.io.Closeable;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the turtle of the records of a set in the TTL zip, in the order of the records. With a
+ * {@link TurtleConversionPool} the records are converted by the pool, the harvesting thread only writes the
+ * converted records. It only waits for a conversion when the maximum number of records of the set are
+ * waiting for their conversion. Without a pool the records are converted on the harvesting thread.
+ *
+ * Actions that may only run when the turtle of the records before them is in the zip (like storing the
+ * resumption token of the next page) are queued with {@link #whenWritten(Runnable)}.
+ */
+class TurtleZipWriter implements Closeable {
+
+    // either a record that is converted or an action that waits for the records before it
+    private record Entry(String entryName, Future<String> turtle, Runnable action) {
+    }
+
+    private final ZipOutputStream zout;
+    private final OutputStreamWriter writer;
+    private final TurtleConversionPool pool;
+    private final Deque<Entry> pending = new ArrayDeque<>();
+
+    private int conversions;
+    private boolean failed;
+
+    /**
+     * @param pool conversion threads, null to convert on the harvesting thread
+     */
+    TurtleZipWriter(ZipOutputStream zout, OutputStreamWriter writer, TurtleConversionPool pool) {
+        this.zout = zout;
+        this.writer = writer;
+        this.pool = pool;
+    }
+
+    /**
+     * Converts the record and writes it in the zip after the records before it
+     */
+    void write(Record record) {
+        write(ZipUtility.getEntryName(record, Constants.TTL_FILE), record.getMetadata().getMetadata());
+    }
+
+    /**
+     * Converts the RDF/XML metadata and writes it in the zip after the entries before it
+     */
+    void write(String entryName, String metadata) {
+        if (pool == null) {
+            ZipUtility.writeTurtleInZip(zout, writer, entryName, metadata);
+            return;
+        }
+        pending.add(new Entry(entryName, pool.convert(metadata), null));
+        conversions++;
+        writeConverted(pool.getQueueSize());
+    }
+
+    /**
+     * Runs the action when all records written so far are in the zip
+     */
+    void whenWritten(Runnable action) {
+        if (pending.isEmpty()) {
+            action.run();
+        } else {
+            pending.add(new Entry(null, null, action));
+        }
+    }
+
+    /**
+     * Writes the records that are converted, in order. Waits for conversions while more than maxPending records
+     * are not written.
+     */
+    private void writeConverted(int maxPending) {
+        while (!pending.isEmpty()) {
+            Entry head = pending.peek();
+            if (head.action() != null) {
+                pending.poll();
+                head.action().run();
+                continue;
+            }
+            if (!head.turtle().isDone() && conversions <= maxPending) {
+                return;
+            }
+            pending.poll();
+            conversions--;
+            String turtle = getTurtle(head.turtle());
+            try {
+                ZipUtility.writeInZip(zout, writer, head.entryName(), turtle);
+            } catch (UncheckedIOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    private String getTurtle(Future<String> turtle) {
+        try {
+            return turtle.get();
+        } catch (InterruptedException e) {
+            failed = true;
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while converting the records to turtle", e);
+        } catch (ExecutionException e) {
+            failed = true;
+            // the same exception as when converting on the harvesting thread
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Error converting a record to turtle", e.getCause());
+        }
+    }
+
+    /**
+     * Writes the records that are still converted. After a failed conversion or write the remaining records are
+     * dropped, so no action runs for records that are not in the zip
+     */
+    @Override
+    public void close() {
+        if (failed) {
+            pending.forEach(entry -> {
+                if (entry.turtle() != null) {
+                    entry.turtle().cancel(true);
+                }
+            });
+            pending.clear();
+            return;
+        }
+        writeConverted(0);
+    }
+}
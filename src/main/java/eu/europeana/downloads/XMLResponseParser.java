@@ -3,207 +3,481 @@ package eu.europeana.downloads;
 import eu.europeana.oaipmh.model.*;
 import eu.europeana.oaipmh.model.Record;
 import eu.europeana.oaipmh.model.response.GetRecordResponse;
+import eu.europeana.oaipmh.model.response.ListIdentifiersResponse;
 import eu.europeana.oaipmh.model.response.ListRecordsResponse;
+import eu.europeana.oaipmh.model.response.ListSetsResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.*;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 
 public class XMLResponseParser {
 
     private static final Logger LOG = LogManager.getLogger(XMLResponseParser.class);
 
+    // creating a factory looks up the implementation every time and the factories and date formats are not
+    // guaranteed to be thread safe, so every harvesting thread keeps its own
+    private static final ThreadLocal<XMLInputFactory> INPUT_FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    });
+
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = ThreadLocal.withInitial(() ->
+            new SimpleDateFormat(Constants.DATE_FORMAT));
+
+    /**
+     * Parser used for the ListRecords pages
+     * stax : the page is parsed while it is received
+     * scanner : the page is received completely and split into records by {@link ListRecordsPageScanner},
+     *           pages the scanner doesn't understand are parsed with StAX
+     * verify : like scanner, but every page is parsed with StAX as well and the StAX result is used if they differ
+     */
+    public enum Engine {
+        STAX, SCANNER, VERIFY
+    }
+
     private XMLResponseParser() {
         //adding a private constructor to hide implicit public one
     }
 
+    /**
+     * @param engine value of the list-records-parser property
+     * @return the engine, STAX if no engine is specified
+     */
+    public static Engine getEngine(String engine) {
+        if (StringUtils.isBlank(engine)) {
+            return Engine.STAX;
+        }
+        return Engine.valueOf(engine.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Parses the GetRecord response. The metadata is captured while the response is parsed, like for
+     * ListRecords, so the response is only read once
+     *
+     * @param responseAsString the response
+     * @return GetRecordResponse, with an empty record if the response could not be parsed
+     */
     public static GetRecordResponse parseGetRecordResponse(String responseAsString) {
         GetRecordResponse recordResponse = new GetRecordResponse();
-        XMLInputFactory factory = XMLInputFactory.newInstance();
-        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
-        XMLEventReader eventReader = null;
-        try (InputStream targetStream = new ByteArrayInputStream(responseAsString.getBytes())){
-             eventReader = factory.createXMLEventReader(targetStream);
-
-            GetRecord getRecord = new GetRecord();
-            Record record = new Record();
-
-            while (eventReader.hasNext()) {
-                XMLEvent xmlEvent = eventReader.nextEvent();
-                if (xmlEvent.isStartElement()) {
-                    StartElement startElement = xmlEvent.asStartElement();
-                    getTagsAndParse(eventReader, startElement,record, responseAsString);
+        MetadataCapturingReader metadataReader = new MetadataCapturingReader(new StringReader(responseAsString));
+        XMLStreamReader streamReader = null;
+        GetRecord getRecord = new GetRecord();
+        Record record = new Record();
+        try {
+            streamReader = INPUT_FACTORY.get().createXMLStreamReader(metadataReader);
+
+            while (streamReader.hasNext()) {
+                int event = streamReader.next();
+                if (event == XMLStreamConstants.START_ELEMENT && Constants.HEADER_TAG.equals(streamReader.getLocalName())) {
+                    parseHeaderResource(streamReader, record);
+                }
+                // only the first metadata element is the metadata of the record. See : EA-3359
+                if (event == XMLStreamConstants.END_ELEMENT && Constants.MEATADATA_TAG.equals(streamReader.getLocalName())
+                        && record.getMetadata() == null) {
+                    setMetadata(metadataReader.nextMetadata(), record);
                 }
             }
-            getRecord.setRecord(record);
-            recordResponse.setGetRecord(getRecord);
         } catch (XMLStreamException e) {
             LOG.debug("Error parsing GetRecordResponse {} ", e);
         } catch (ParseException e) {
             LOG.debug("Error parsing Datestamp {} ", e);
-        } catch (IOException e) {
-            LOG.debug("Error creating the input stream {} ", e);
         }
         finally {
-            if (eventReader != null) {
-                try {
-                    eventReader.close();
-                } catch (XMLStreamException xse) {
-                    // Ignore
-                }
-            }
+            closeQuietly(streamReader);
         }
+        getRecord.setRecord(record);
+        recordResponse.setGetRecord(getRecord);
         return recordResponse;
     }
 
     public static ListRecordsResponse parseListRecordResponse(String responseAsString) {
+        try {
+            return parseListRecordResponse(new StringReader(responseAsString));
+        } catch (IOException e) {
+            LOG.debug("Error reading the response {} ", e);
+        }
+        return new ListRecordsResponse();
+    }
+
+    /**
+     * Parses the ListRecords response while it is read, so the complete response is never kept in memory.
+     * The metadata of the records is captured from the stream as it was sent by the server.
+     *
+     * @param responseReader reader for the response body
+     * @return ListRecordsResponse, without ListRecords if the response could not be parsed
+     * @throws IOException if the response could not be read
+     */
+    public static ListRecordsResponse parseListRecordResponse(Reader responseReader) throws IOException {
         ListRecordsResponse recordResponse = new ListRecordsResponse();
-        XMLInputFactory factory = XMLInputFactory.newInstance();
-        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
-        XMLEventReader eventReader = null;
-        try(InputStream targetStream = new ByteArrayInputStream(responseAsString.getBytes())) {
-            eventReader = factory.createXMLEventReader(targetStream);
+        MetadataCapturingReader metadataReader = new MetadataCapturingReader(responseReader);
+        XMLStreamReader streamReader = null;
+        try {
+            streamReader = INPUT_FACTORY.get().createXMLStreamReader(metadataReader);
 
-            ListRecords listRecords = new ListRecords();
+            ListRecords listRecords = null;
             List<Record> recordList = new ArrayList<>();
             Record record = null;
             ResumptionToken resumptionToken = null;
 
-            while (eventReader.hasNext()) {
-                XMLEvent xmlEvent = eventReader.nextEvent();
-                if (xmlEvent.isStartElement()) {
-                    StartElement startElement = xmlEvent.asStartElement();
-                    //As soo as record tag is opened, create new record object
-                    if (Constants.RECORD_TAG.equalsIgnoreCase(startElement.getName().getLocalPart())) {
+            while (streamReader.hasNext()) {
+                int event = streamReader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String localName = streamReader.getLocalName();
+                    if (Constants.LIST_RECORDS_VERB.equals(localName)) {
+                        listRecords = new ListRecords();
+                    }
+                    //As soon as record tag is opened, create new record object
+                    if (Constants.RECORD_TAG.equalsIgnoreCase(localName)) {
                         record = new Record();
                     }
-                    getTagsAndParse(eventReader, startElement,record, responseAsString);
+                    if (Constants.HEADER_TAG.equals(localName)) {
+                        parseHeaderResource(streamReader, record);
+                    }
                     //get the resumption token value
-                    if (Constants.RESUMPTIONTOKEN_TAG.equalsIgnoreCase(startElement.getName().getLocalPart())) {
+                    if (Constants.RESUMPTIONTOKEN_TAG.equalsIgnoreCase(localName)) {
                         resumptionToken = new ResumptionToken();
-                        parseResumptionToken(startElement, resumptionToken);
-                        resumptionToken.setValue(eventReader.getElementText());
+                        parseResumptionToken(streamReader, resumptionToken);
+                        resumptionToken.setValue(streamReader.getElementText());
                     }
                 }
-                if (xmlEvent.isEndElement() && StringUtils.equalsIgnoreCase(xmlEvent.asEndElement().getName().getLocalPart(), Constants.RECORD_TAG)) {
-                    recordList.add(record);
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    String localName = streamReader.getLocalName();
+                    // the metadata is captured by the reader by now
+                    if (Constants.MEATADATA_TAG.equals(localName)) {
+                        setMetadata(metadataReader.nextMetadata(), record);
+                    }
+                    if (Constants.RECORD_TAG.equalsIgnoreCase(localName)) {
+                        recordList.add(record);
+                    }
                 }
             }
 
-            listRecords.setRecords(recordList);
-            listRecords.setResumptionToken(resumptionToken);
-            recordResponse.setListRecords(listRecords);
+            // an error response (e.g. badResumptionToken, noRecordsMatch) has no ListRecords
+            if (listRecords != null) {
+                listRecords.setRecords(recordList);
+                listRecords.setResumptionToken(resumptionToken);
+                recordResponse.setListRecords(listRecords);
+            }
         } catch (XMLStreamException e) {
+            // failing to read the response is not a parse error, let the caller handle it
+            if (e.getNestedException() instanceof IOException ioException) {
+                throw ioException;
+            }
             LOG.debug("Error parsing ListRecordResponse {} ", e);
         } catch (ParseException e) {
             LOG.debug("Error parsing Datestamp {} ", e);
-        } catch (IOException e) {
-            LOG.debug("Error creating the input stream {} ", e);
         }
         finally {
-            if (eventReader != null) {
-                try {
-                    eventReader.close();
-                } catch (XMLStreamException xse) {
-                    // Ignore
+            closeQuietly(streamReader);
+        }
+        return recordResponse;
+    }
+
+    /**
+     * Parses the ListRecords response with the engine
+     *
+     * @param body    response body
+     * @param charset charset of the response, the scanner only reads UTF-8 pages
+     * @param engine  parser to use
+     * @return ListRecordsResponse, without ListRecords if the response could not be parsed
+     * @throws IOException if the response could not be read
+     */
+    public static ListRecordsResponse parseListRecordResponse(InputStream body, Charset charset, Engine engine) throws IOException {
+        if (engine == Engine.STAX || !StandardCharsets.UTF_8.equals(charset)) {
+            return parseListRecordResponse(new InputStreamReader(body, charset));
+        }
+        byte[] page = body.readAllBytes();
+        ListRecordsResponse scanned = ListRecordsPageScanner.scan(page);
+        if (scanned == null) {
+            LOG.debug("Page can't be split by the scanner, parsing it with StAX");
+            return parseListRecordResponse(new InputStreamReader(new ByteArrayInputStream(page), StandardCharsets.UTF_8));
+        }
+        if (engine == Engine.VERIFY) {
+            ListRecordsResponse parsed = parseListRecordResponse(new InputStreamReader(new ByteArrayInputStream(page), StandardCharsets.UTF_8));
+            String difference = getDifference(scanned.getListRecords(), parsed.getListRecords());
+            if (difference != null) {
+                LOG.warn("Scanner and StAX results differ ({}), using the StAX result", difference);
+                return parsed;
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * @return description of the first difference between the pages, null if they are the same
+     */
+    private static String getDifference(ListRecords scanned, ListRecords parsed) {
+        if (parsed == null) {
+            return "StAX could not parse the page";
+        }
+        if (scanned.getRecords().size() != parsed.getRecords().size()) {
+            return "number of records " + scanned.getRecords().size() + " <> " + parsed.getRecords().size();
+        }
+        for (int i = 0; i < parsed.getRecords().size(); i++) {
+            Record a = scanned.getRecords().get(i);
+            Record b = parsed.getRecords().get(i);
+            String identifier = b.getHeader() == null ? null : b.getHeader().getIdentifier();
+            if (!isSameHeader(a.getHeader(), b.getHeader())) {
+                return "header of record " + identifier;
+            }
+            if (!Objects.equals(a.getMetadata() == null ? null : a.getMetadata().getMetadata(),
+                    b.getMetadata() == null ? null : b.getMetadata().getMetadata())) {
+                return "metadata of record " + identifier;
+            }
+        }
+        ResumptionToken a = scanned.getResumptionToken();
+        ResumptionToken b = parsed.getResumptionToken();
+        if (a == null || b == null) {
+            return a == b ? null : "resumption token";
+        }
+        if (!Objects.equals(a.getValue(), b.getValue()) || a.getCompleteListSize() != b.getCompleteListSize()
+                || a.getCursor() != b.getCursor() || !Objects.equals(a.getExpirationDate(), b.getExpirationDate())) {
+            return "resumption token";
+        }
+        return null;
+    }
+
+    private static boolean isSameHeader(Header a, Header b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return Objects.equals(a.getIdentifier(), b.getIdentifier()) && Objects.equals(a.getDatestamp(), b.getDatestamp())
+                && Objects.equals(a.getSetSpec(), b.getSetSpec());
+    }
+
+    /**
+     * Parses the ListSets response while it is read, without converting it to JSON first
+     *
+     * @param responseReader reader for the response body
+     * @return ListSetsResponse, without ListSets if the response has no sets or could not be parsed
+     * @throws IOException if the response could not be read
+     */
+    public static ListSetsResponse parseListSetsResponse(Reader responseReader) throws IOException {
+        ListSetsResponse setsResponse = new ListSetsResponse();
+        XMLStreamReader streamReader = null;
+        try {
+            streamReader = INPUT_FACTORY.get().createXMLStreamReader(responseReader);
+
+            ListSets listSets = null;
+            List<Set> sets = new ArrayList<>();
+            Set set = null;
+            ResumptionToken resumptionToken = null;
+
+            while (streamReader.hasNext()) {
+                int event = streamReader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (streamReader.getLocalName()) {
+                        case Constants.LIST_SET_VERB:
+                            listSets = new ListSets();
+                            break;
+                        case Constants.SET_TAG:
+                            set = new Set();
+                            break;
+                        case Constants.SETSPEC_TAG:
+                            if (set != null) {
+                                set.setSetSpec(streamReader.getElementText());
+                            }
+                            break;
+                        case Constants.SETNAME_TAG:
+                            if (set != null) {
+                                set.setSetName(streamReader.getElementText());
+                            }
+                            break;
+                        case Constants.RESUMPTIONTOKEN_TAG:
+                            resumptionToken = new ResumptionToken();
+                            parseResumptionToken(streamReader, resumptionToken);
+                            resumptionToken.setValue(streamReader.getElementText());
+                            break;
+                        default: // do nothing
+                    }
                 }
+                if (event == XMLStreamConstants.END_ELEMENT && Constants.SET_TAG.equals(streamReader.getLocalName())) {
+                    sets.add(set);
+                    set = null;
+                }
+            }
+
+            // an error response (e.g. noSetHierarchy) has no ListSets
+            if (listSets != null) {
+                listSets.setSets(sets);
+                listSets.setResumptionToken(getNextToken(resumptionToken));
+                setsResponse.setListSets(listSets);
             }
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException ioException) {
+                throw ioException;
+            }
+            LOG.debug("Error parsing ListSetsResponse {} ", e);
+        } catch (ParseException e) {
+            LOG.debug("Error parsing Datestamp {} ", e);
         }
-        return recordResponse;
+        finally {
+            closeQuietly(streamReader);
+        }
+        return setsResponse;
     }
 
-    private static void getTagsAndParse(XMLEventReader eventReader, StartElement startElement, Record record, String response) throws XMLStreamException, ParseException {
-        //get the header and metadata tag values
-        switch (startElement.getName().getLocalPart()) {
-            case Constants.HEADER_TAG:
-                parseHeaderResource(eventReader, record);
-                break;
-            case Constants.MEATADATA_TAG:
-                paraseMetadataString(response, record.getHeader().getIdentifier(), record);
-                break;
-            default: // do nothing
+    /**
+     * Parses the ListIdentifiers response while it is read, without converting it to JSON first
+     *
+     * @param responseReader reader for the response body
+     * @return ListIdentifiersResponse, without ListIdentifiers if no records match or the response could not be parsed
+     * @throws IOException if the response could not be read
+     */
+    public static ListIdentifiersResponse parseListIdentifiersResponse(Reader responseReader) throws IOException {
+        ListIdentifiersResponse identifiersResponse = new ListIdentifiersResponse();
+        XMLStreamReader streamReader = null;
+        try {
+            streamReader = INPUT_FACTORY.get().createXMLStreamReader(responseReader);
+
+            ListIdentifiers listIdentifiers = null;
+            List<Header> headers = new ArrayList<>();
+            ResumptionToken resumptionToken = null;
+
+            while (streamReader.hasNext()) {
+                int event = streamReader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (streamReader.getLocalName()) {
+                        case Constants.LIST_IDENTIFIERS_VERB:
+                            listIdentifiers = new ListIdentifiers();
+                            break;
+                        case Constants.HEADER_TAG:
+                            headers.add(parseHeader(streamReader));
+                            break;
+                        case Constants.RESUMPTIONTOKEN_TAG:
+                            resumptionToken = new ResumptionToken();
+                            parseResumptionToken(streamReader, resumptionToken);
+                            resumptionToken.setValue(streamReader.getElementText());
+                            break;
+                        default: // do nothing
+                    }
+                }
+            }
+
+            // an error response (e.g. noRecordsMatch) has no ListIdentifiers
+            if (listIdentifiers != null) {
+                listIdentifiers.setHeaders(headers);
+                listIdentifiers.setResumptionToken(getNextToken(resumptionToken));
+                identifiersResponse.setListIdentifiers(listIdentifiers);
+            }
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException ioException) {
+                throw ioException;
+            }
+            LOG.debug("Error parsing ListIdentifiersResponse {} ", e);
+        } catch (ParseException e) {
+            LOG.debug("Error parsing Datestamp {} ", e);
+        }
+        finally {
+            closeQuietly(streamReader);
+        }
+        return identifiersResponse;
+    }
+
+    /**
+     * The last page of a list may have an empty resumption token, which means there is no next page
+     */
+    private static ResumptionToken getNextToken(ResumptionToken resumptionToken) {
+        if (resumptionToken == null || StringUtils.isBlank(resumptionToken.getValue())) {
+            return null;
+        }
+        return resumptionToken;
+    }
+
+    private static void closeQuietly(XMLStreamReader streamReader) {
+        if (streamReader != null) {
+            try {
+                streamReader.close();
+            } catch (XMLStreamException xse) {
+                // Ignore
+            }
         }
     }
-    private static void parseHeaderResource(XMLEventReader xmlEventReader, Record record) throws XMLStreamException, ParseException {
+
+    private static void parseHeaderResource(XMLStreamReader streamReader, Record record) throws XMLStreamException, ParseException {
+        record.setHeader(parseHeader(streamReader));
+    }
+
+    private static Header parseHeader(XMLStreamReader streamReader) throws XMLStreamException, ParseException {
         Header header = new Header();
-        record.setHeader(header);
 
         //get identifier, date, spetspec
-        while (xmlEventReader.hasNext()) {
-            XMLEvent e = xmlEventReader.nextEvent();
-            if (e.isStartElement()) {
-                StartElement se = e.asStartElement();
-
-                switch (se.getName().getLocalPart()) {
+        while (streamReader.hasNext()) {
+            int event = streamReader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (streamReader.getLocalName()) {
                     case Constants.IDENTIFIER_TAG:
-                        header.setIdentifier(xmlEventReader.getElementText());
+                        header.setIdentifier(streamReader.getElementText());
                         break;
                     case Constants.DATESTAMP_TAG:
-                        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(Constants.DATE_FORMAT);
-                        Date parsedDate = simpleDateFormat.parse(xmlEventReader.getElementText());
-                        header.setDatestamp(parsedDate);
+                        header.setDatestamp(DATE_FORMAT.get().parse(streamReader.getElementText()));
                         break;
                     case Constants.SETSPEC_TAG:
-                        header.setSetSpec(xmlEventReader.getElementText());
+                        header.setSetSpec(streamReader.getElementText());
                         break;
                     default: // do nothing
                 }
             }
-            if (e.isEndElement() && StringUtils.equalsIgnoreCase(e.asEndElement().getName().getLocalPart(), Constants.HEADER_TAG)) {
+            if (event == XMLStreamConstants.END_ELEMENT && StringUtils.equalsIgnoreCase(streamReader.getLocalName(), Constants.HEADER_TAG)) {
                 break;
             }
         }
+        return header;
+    }
+
+    /**
+     * Parses a datestamp of the response
+     */
+    static Date parseDate(String value) throws ParseException {
+        return DATE_FORMAT.get().parse(value);
     }
 
-    private static void paraseMetadataString(String response, String identifier, Record record) {
+    private static void setMetadata(String value, Record record) {
         RDFMetadata metadata = new RDFMetadata();
         record.setMetadata(metadata);
-        StringBuilder metadataValue = new StringBuilder(Constants.XML_DECLARATION);
-
-        if (StringUtils.contains(response, identifier)) {
-            // get the exact index of the identifier and  fetch the first metadata value from there. See : EA-3359
-            int recordStartIndex = StringUtils.indexOf(response, "<identifier>" + identifier + "</identifier>");
-            int metadataStartIndex = StringUtils.indexOf(response, "<metadata>", recordStartIndex);
-            int metadataEndIndex = StringUtils.indexOf(response, "</metadata>", metadataStartIndex);
-            String value = StringUtils.substring(response, metadataStartIndex + 10, metadataEndIndex);
-            metadataValue.append(value);
+        if (value == null) {
+            LOG.warn("No metadata captured for record {}", record.getHeader() == null ? null : record.getHeader().getIdentifier());
+            metadata.setMetadata(Constants.XML_DECLARATION);
+        } else {
+            metadata.setMetadata(value);
         }
-        metadata.setMetadata(metadataValue.toString());
     }
 
-    private static void parseResumptionToken(StartElement startElement, ResumptionToken resumptionToken) throws ParseException {
-        @SuppressWarnings("unchecked")
-        Iterator<Attribute> iterator = startElement.getAttributes();
-
-        while (iterator.hasNext()) {
-            Attribute attribute = iterator.next();
-            QName name = attribute.getName();
-            if (Constants.COMPLETELISTSIZE_TAG.equalsIgnoreCase(name.getLocalPart())) {
-                resumptionToken.setCompleteListSize(Integer.valueOf(attribute.getValue()));
+    private static void parseResumptionToken(XMLStreamReader streamReader, ResumptionToken resumptionToken) throws ParseException {
+        for (int i = 0; i < streamReader.getAttributeCount(); i++) {
+            String name = streamReader.getAttributeLocalName(i);
+            String value = streamReader.getAttributeValue(i);
+            if (Constants.COMPLETELISTSIZE_TAG.equalsIgnoreCase(name)) {
+                resumptionToken.setCompleteListSize(Integer.valueOf(value));
             }
-            if (Constants.EXPIRATIONDATE_TAG.equalsIgnoreCase(name.getLocalPart())) {
-                SimpleDateFormat simpleDateFormat = new SimpleDateFormat(Constants.DATE_FORMAT);
-                Date parsedDate = simpleDateFormat.parse(attribute.getValue());
-                resumptionToken.setExpirationDate(parsedDate);
+            if (Constants.EXPIRATIONDATE_TAG.equalsIgnoreCase(name)) {
+                resumptionToken.setExpirationDate(DATE_FORMAT.get().parse(value));
             }
-            if (Constants.CURSOR_TAG.equalsIgnoreCase(name.getLocalPart())) {
-                resumptionToken.setCursor(Integer.valueOf(attribute.getValue()));
+            if (Constants.CURSOR_TAG.equalsIgnoreCase(name)) {
+                resumptionToken.setCursor(Integer.valueOf(value));
             }
-
         }
     }
 }
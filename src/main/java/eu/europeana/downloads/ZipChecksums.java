@@ -0,0 +1,162 @@
+package eu.europeana.downloads;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Checksums of a zip, calculated from the bytes of the zip while it is written, so the zip is not read again
+ * to write its checksum files. The md5 file is always written, the sha256 file only when it is enabled.
+ */
+class ZipChecksums {
+
+    private static final Logger LOG = LogManager.getLogger(ZipChecksums.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // zips that are read for their checksums are read in large blocks, not in the blocks of a stream
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private static volatile boolean sha256Enabled;
+
+    private final MessageDigest md5;
+
+    // null if the sha256 file is not written
+    private final MessageDigest sha256;
+
+    ZipChecksums() {
+        this.md5 = getDigest("MD5");
+        this.sha256 = sha256Enabled ? getDigest("SHA-256") : null;
+    }
+
+    /**
+     * @param enabled true to write a sha256 file next to the md5 file of the zips
+     */
+    static void setSha256(boolean enabled) {
+        sha256Enabled = enabled;
+    }
+
+    /**
+     * Wraps the output stream of a file, the checksum files of the file are written when the stream is closed
+     *
+     * @param out      output stream of the file
+     * @param fileName path of the file
+     */
+    static OutputStream open(OutputStream out, String fileName) {
+        ZipChecksums checksums = new ZipChecksums();
+        // the checksums are updated with the buffered blocks instead of the small writes of the zip stream
+        return new FilterOutputStream(new BufferedOutputStream(checksums.digest(out), BUFFER_SIZE)) {
+            private boolean closed;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // FilterOutputStream writes the bytes one by one
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                super.close();
+                checksums.write(fileName);
+            }
+        };
+    }
+
+    /**
+     * Calculates the checksums of a file that was not written with its checksums
+     */
+    static ZipChecksums read(Path file) throws IOException {
+        ZipChecksums checksums = new ZipChecksums();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer.clear()) != -1) {
+                checksums.update(buffer.flip());
+            }
+        }
+        return checksums;
+    }
+
+    private void update(ByteBuffer buffer) {
+        md5.update(buffer.array(), 0, buffer.limit());
+        if (sha256 != null) {
+            sha256.update(buffer.array(), 0, buffer.limit());
+        }
+    }
+
+    /**
+     * @return the output stream that updates the checksums with the bytes written to the output stream
+     */
+    OutputStream digest(OutputStream out) {
+        OutputStream digested = new DigestOutputStream(out, md5);
+        return sha256 == null ? digested : new DigestOutputStream(digested, sha256);
+    }
+
+    /**
+     * Writes the checksum files of the file, in the same format as the md5 files of earlier harvests
+     *
+     * @param fileName path of the file
+     * @return true if the checksum files are written
+     */
+    boolean write(String fileName) {
+        boolean written = ZipUtility.writeMD5SumFile(fileName, md5.digest());
+        if (sha256 != null) {
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(fileName + Constants.SHA256_EXTENSION))) {
+                out.write(HexFormat.of().formatHex(sha256.digest()) + "\n");
+            } catch (IOException e) {
+                LOG.error("Error creating SHA256 file", e);
+                written = false;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Moves the checksum files of a file that was renamed
+     */
+    static void move(String fileName, String target) throws IOException {
+        for (String extension : new String[]{Constants.MD5_EXTENSION, Constants.SHA256_EXTENSION}) {
+            Path checksum = Paths.get(fileName + extension);
+            if (Files.exists(checksum)) {
+                Files.move(checksum, Paths.get(target + extension), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    /**
+     * Deletes the checksum files of a file
+     */
+    static void delete(String fileName) throws IOException {
+        Files.deleteIfExists(Paths.get(fileName + Constants.MD5_EXTENSION));
+        Files.deleteIfExists(Paths.get(fileName + Constants.SHA256_EXTENSION));
+    }
+
+    private static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " not supported", e);
+        }
+    }
+}
@@ -1,29 +1,56 @@
 package eu.europeana.downloads;
 
 import eu.europeana.oaipmh.model.Record;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 public class ZipUtility {
 
     private static final Logger LOG = LogManager.getLogger(ZipUtility.class);
 
+    static final byte[] XML_DECLARATION_BYTES = Constants.XML_DECLARATION.getBytes(StandardCharsets.UTF_8);
+
+    // message of the ZipException of an entry that is in the zip already
+    static final String DUPLICATE_ENTRY = "duplicate entry";
+
+    // entries per deflate thread that can wait for their compression before the writer waits
+    private static final int PENDING_ENTRIES_PER_THREAD = 4;
+
+    private static volatile ExecutorService deflaters;
+    private static volatile int deflateThreads;
+    private static volatile int xmlLevel = Deflater.DEFAULT_COMPRESSION;
+    private static volatile int ttlLevel = Deflater.DEFAULT_COMPRESSION;
+
     private ZipUtility() {
         //adding a private constructor to hide implicit public one
     }
@@ -32,14 +59,368 @@ public class ZipUtility {
      * method to write in the zip
      */
     public static void writeInZip(ZipOutputStream zout, OutputStreamWriter writer, Record recordVal, String fileFormat) {
+        // metadata split from the page bytes is copied as it is, the same as encoding the metadata string again
+        if (!StringUtils.equals(fileFormat, Constants.TTL_FILE) && recordVal.getMetadata() instanceof PageMetadata metadata) {
+            writeInZip(zout, getEntryName(recordVal, fileFormat), metadata);
+            return;
+        }
+        if (StringUtils.equals(fileFormat, Constants.TTL_FILE)) {
+            writeTurtleInZip(zout, writer, getEntryName(recordVal, fileFormat), recordVal.getMetadata().getMetadata());
+            return;
+        }
+        writeInZip(zout, writer, getEntryName(recordVal, fileFormat),
+                dataToWriteInZip(recordVal.getMetadata().getMetadata(), fileFormat));
+    }
+
+    /**
+     * converts the RDF/XML metadata to turtle and writes it in the zip
+     */
+    static void writeTurtleInZip(ZipOutputStream zout, OutputStreamWriter writer, String entryName, String metadata) {
+        // streamed turtle is copied from the conversion buffer, without a string in between
+        if (TurtleResponseParser.isStreaming()) {
+            writeInZip(zout, entryName, TurtleResponseParser.streamTurtle(metadata));
+            return;
+        }
+        writeInZip(zout, writer, entryName, dataToWriteInZip(metadata, Constants.TTL_FILE));
+    }
+
+    /**
+     * method to write already converted data in the zip
+     */
+    static void writeInZip(ZipOutputStream zout, OutputStreamWriter writer, String entryName, String data) {
         try {
-            zout.putNextEntry(new ZipEntry(getEntryName(recordVal, fileFormat)));
-            writer.write(dataToWriteInZip(recordVal.getMetadata().getMetadata(), fileFormat));
+            zout.putNextEntry(new ZipEntry(entryName));
+            writer.write(data);
             writer.flush();
             zout.closeEntry();
         } catch (IOException e) {
-            LOG.error("Error writing the zip entry", e);
+            handleWriteError(entryName, e);
+        }
+    }
+
+    private static void writeInZip(ZipOutputStream zout, String entryName, ByteArrayOutputStream turtle) {
+        try {
+            zout.putNextEntry(new ZipEntry(entryName));
+            turtle.writeTo(zout);
+            zout.closeEntry();
+        } catch (IOException e) {
+            handleWriteError(entryName, e);
+        }
+    }
+
+    private static void writeInZip(ZipOutputStream zout, String entryName, PageMetadata metadata) {
+        try {
+            zout.putNextEntry(new ZipEntry(entryName));
+            metadata.writeTo(zout);
+            zout.closeEntry();
+        } catch (IOException e) {
+            handleWriteError(entryName, e);
+        }
+    }
+
+    /**
+     * A record that is in the zip already is not written again. Other errors fail the zip, the entry may be
+     * missing and with compressing threads the error can be of an entry written before
+     */
+    private static void handleWriteError(String entryName, IOException e) {
+        if (e instanceof ZipException && StringUtils.startsWith(e.getMessage(), DUPLICATE_ENTRY)) {
+            LOG.warn("Entry {} is in the zip already", entryName);
+            return;
+        }
+        throw new UncheckedIOException("Error writing the zip entry " + entryName, e);
+    }
+
+    /**
+     * Sets the compression of the zips that are opened with {@link #openZip(String, boolean, String)}
+     *
+     * @param threads  threads that compress the entries of all zips, 0 to compress on the thread that writes the zip
+     * @param xmlLevel deflate level of the XML zips, -1 for the default level
+     * @param ttlLevel deflate level of the TTL zips, -1 for the default level
+     */
+    static synchronized void setCompression(int threads, int xmlLevel, int ttlLevel) {
+        ZipUtility.xmlLevel = xmlLevel;
+        ZipUtility.ttlLevel = ttlLevel;
+        if (deflaters != null) {
+            deflaters.shutdown();
+            deflaters = null;
+        }
+        deflateThreads = threads;
+        if (threads > 0) {
+            AtomicInteger count = new AtomicInteger();
+            deflaters = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "zip-deflate-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Opens the zip for writing. When appending, the entries already in the zip are copied into the new zip
+     * first, so the records of an earlier harvest are kept. They are copied as they are, without decompressing
+     * and compressing them again. The checksum files of the zip are written when the zip is closed.
+     *
+     * @param zipName    path of the zip
+     * @param append     true to keep the entries of an existing zip
+     * @param fileFormat format of the records in the zip, selects the compression level
+     */
+    public static ZipOutputStream openZip(String zipName, boolean append, String fileFormat) throws IOException {
+        return openZip(zipName, append, fileFormat, true);
+    }
+
+    /**
+     * @param checksums true to write the checksum files of the zip when it is closed
+     * @see #openZip(String, boolean, String)
+     */
+    static ZipOutputStream openZip(String zipName, boolean append, String fileFormat, boolean checksums) throws IOException {
+        File zip = new File(zipName);
+        if (!append || !zip.exists()) {
+            return createZip(zip, fileFormat, checksums);
+        }
+        File partial = new File(zipName + Constants.PARTIAL_EXTENSION);
+        Files.move(zip.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        ParallelZipOutputStream zout = createParallelZip(zip, fileFormat, checksums);
+        try (org.apache.commons.compress.archivers.zip.ZipFile partialZip = openRawZip(partial.getPath())) {
+            long copied = 0;
+            Enumeration<ZipArchiveEntry> entries = partialZip.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                zout.addRawEntry(entry, partialZip.getRawInputStream(entry));
+                copied++;
+            }
+            LOG.info("Copied {} entries of the partial zip {}", copied, zipName);
+        } catch (IOException e) {
+            zout.close();
+            throw e;
+        }
+        Files.delete(partial.toPath());
+        return zout;
+    }
+
+    /**
+     * Writes the zip updated with the entries of the changes zip under its temporary name, together with its
+     * checksum files. The other entries of the zip are copied as they are, without decompressing and compressing
+     * them again, so the time to update a zip depends on the number of changed entries and not on the number of
+     * entries. The updated zip replaces the zip when it is committed with {@link #commitZip(String)}.
+     *
+     * @param zipName     path of the zip
+     * @param changesName path of the zip with the added and changed entries
+     * @param deleted     names of the entries to drop from the zip
+     * @return number of entries in the updated zip
+     */
+    static long patchZip(String zipName, String changesName, Set<String> deleted) throws IOException {
+        Path zip = Paths.get(zipName);
+        Path patched = Paths.get(zipName + Constants.PARTIAL_EXTENSION);
+        long entries = 0;
+        try (org.apache.commons.compress.archivers.zip.ZipFile previous = openRawZip(zipName);
+             org.apache.commons.compress.archivers.zip.ZipFile changes = openRawZip(changesName);
+             ZipArchiveOutputStream zout = new ZipArchiveOutputStream(
+                     ZipChecksums.open(Files.newOutputStream(patched), patched.toString()))) {
+            Set<String> changed = new HashSet<>();
+            changes.getEntries().asIterator().forEachRemaining(entry -> changed.add(entry.getName()));
+            Enumeration<ZipArchiveEntry> previousEntries = previous.getEntries();
+            while (previousEntries.hasMoreElements()) {
+                ZipArchiveEntry entry = previousEntries.nextElement();
+                if (!changed.contains(entry.getName()) && !deleted.contains(entry.getName())) {
+                    zout.addRawArchiveEntry(entry, previous.getRawInputStream(entry));
+                    entries++;
+                }
+            }
+            Enumeration<ZipArchiveEntry> changedEntries = changes.getEntries();
+            while (changedEntries.hasMoreElements()) {
+                ZipArchiveEntry entry = changedEntries.nextElement();
+                zout.addRawArchiveEntry(entry, changes.getRawInputStream(entry));
+                entries++;
+            }
+        } catch (IOException e) {
+            deletePartialZip(zipName);
+            throw e;
+        }
+        return entries;
+    }
+
+    /**
+     * Deletes the zip that was written under the temporary name of the zip, together with its checksum files
+     */
+    static void deletePartialZip(String zipName) throws IOException {
+        Path partial = Paths.get(zipName + Constants.PARTIAL_EXTENSION);
+        Files.deleteIfExists(partial);
+        ZipChecksums.delete(partial.toString());
+    }
+
+    /**
+     * Replaces the zip with the zip that was written under its temporary name, together with its checksum files.
+     * The new zip is forced to the disk first, so after a crash the zip is either the previous or the new zip and
+     * never a partially written zip.
+     */
+    static void commitZip(String zipName) throws IOException {
+        Path partial = Paths.get(zipName + Constants.PARTIAL_EXTENSION);
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(partial, Paths.get(zipName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ZipChecksums.move(partial.toString(), zipName);
+    }
+
+    /**
+     * Prepares the zip of an interrupted harvest to continue the harvest: the zip keeps its first entries, the
+     * entries written after the last checkpoint are dropped. The entries of a zip that was closed are copied as
+     * they are. The zip of a harvest that was killed has no central directory, its entries are read one after
+     * the other up to the entry that was being written and compressed again.
+     *
+     * @param entries    number of entries of the last checkpoint
+     * @param fileFormat format of the records in the zip, selects the compression level
+     * @return true if the zip has the entries
+     */
+    static boolean recoverZip(String zipName, long entries, String fileFormat) {
+        File zip = new File(zipName);
+        if (!zip.exists()) {
+            return false;
+        }
+        long size;
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            size = zipFile.size();
+        } catch (IOException e) {
+            LOG.info("Zip {} was not closed, recovering its entries", zipName);
+            size = -1;
+        }
+        if (size == entries) {
+            return true;
+        }
+        File recovered = new File(zipName + Constants.PARTIAL_EXTENSION);
+        long copied = size == -1 ? copyEntries(zip, recovered, entries, fileFormat)
+                : copyRawEntries(zip, recovered, entries, fileFormat);
+        try {
+            if (copied < entries) {
+                LOG.warn("Zip {} has {} of the {} entries of the last checkpoint", zipName, copied, entries);
+                Files.deleteIfExists(recovered.toPath());
+                return false;
+            }
+            Files.move(recovered.toPath(), zip.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            LOG.error("Error recovering zip {}", zipName, e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies the first entries of a zip as they are
+     *
+     * @return number of entries copied, -1 if the zip can't be copied
+     */
+    private static long copyRawEntries(File zip, File recovered, long entries, String fileFormat) {
+        long copied = 0;
+        try (org.apache.commons.compress.archivers.zip.ZipFile zipFile = openRawZip(zip.getPath());
+             ParallelZipOutputStream out = createParallelZip(recovered, fileFormat, false)) {
+            Enumeration<ZipArchiveEntry> zipEntries = zipFile.getEntries();
+            while (copied < entries && zipEntries.hasMoreElements()) {
+                ZipArchiveEntry entry = zipEntries.nextElement();
+                out.addRawEntry(entry, zipFile.getRawInputStream(entry));
+                copied++;
+            }
+        } catch (IOException e) {
+            LOG.error("Error recovering zip {}", zip, e);
+            return -1;
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the entries of a zip without central directory until the first entry that can't be read
+     *
+     * @return number of entries copied, -1 if the zip can't be copied
+     */
+    private static long copyEntries(File zip, File recovered, long entries, String fileFormat) {
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(zip)));
+             ZipOutputStream out = createZip(recovered, fileFormat, false)) {
+            return copyEntries(in, out, entries);
+        } catch (IOException e) {
+            LOG.error("Error recovering zip {}", zip, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Copies entries until the first entry that can't be read
+     *
+     * @return number of entries copied
+     */
+    private static long copyEntries(ZipInputStream in, ZipOutputStream out, long entries) {
+        long copied = 0;
+        try {
+            ZipEntry entry;
+            while (copied < entries && (entry = in.getNextEntry()) != null) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                in.transferTo(out);
+                out.closeEntry();
+                copied++;
+            }
+        } catch (IOException e) {
+            LOG.debug("Entry {} can't be read : {}", copied + 1, e.getMessage());
+        }
+        return copied;
+    }
+
+    /**
+     * @return names of the entries of the zip
+     */
+    static Set<String> getEntryNames(String zipName) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (ZipFile zipFile = new ZipFile(zipName)) {
+            zipFile.stream().forEach(entry -> names.add(entry.getName()));
+        }
+        return names;
+    }
+
+    private static org.apache.commons.compress.archivers.zip.ZipFile openRawZip(String zipName) throws IOException {
+        return org.apache.commons.compress.archivers.zip.ZipFile.builder().setFile(zipName).get();
+    }
+
+    /**
+     * @return a zip that compresses its entries on the deflate threads, or on the calling thread if there are none
+     */
+    private static ZipOutputStream createZip(File zip, String fileFormat, boolean checksums) throws IOException {
+        if (deflaters != null) {
+            return createParallelZip(zip, fileFormat, checksums);
+        }
+        ZipOutputStream zout = new ZipOutputStream(openOutput(zip, checksums));
+        zout.setLevel(getLevel(fileFormat));
+        return zout;
+    }
+
+    /**
+     * @return a zip that can copy the entries of another zip as they are, it compresses its own entries on the
+     * deflate threads or on the calling thread if there are none
+     */
+    private static ParallelZipOutputStream createParallelZip(File zip, String fileFormat, boolean checksums) throws IOException {
+        ExecutorService pool = deflaters;
+        return new ParallelZipOutputStream(openOutput(zip, checksums), pool, getLevel(fileFormat),
+                pool == null ? 0 : deflateThreads * PENDING_ENTRIES_PER_THREAD);
+    }
+
+    private static OutputStream openOutput(File zip, boolean checksums) throws IOException {
+        return checksums ? ZipChecksums.open(new FileOutputStream(zip), zip.getPath())
+                : new BufferedOutputStream(new FileOutputStream(zip));
+    }
+
+    private static int getLevel(String fileFormat) {
+        return StringUtils.equals(fileFormat, Constants.TTL_FILE) ? ttlLevel : xmlLevel;
+    }
+
+    /**
+     * @return true if the file exists and is a readable zip
+     */
+    public static boolean isValidZip(String zipName) {
+        if (!new File(zipName).exists()) {
+            return false;
+        }
+        try (ZipFile zipFile = new ZipFile(zipName)) {
+            return zipFile.size() >= 0;
+        } catch (IOException e) {
+            LOG.error("Error reading the zip file {}", zipName, e);
         }
+        return false;
     }
 
     /**
@@ -48,7 +429,7 @@ public class ZipUtility {
      *
      * @return metadata
      */
-    private static String dataToWriteInZip(String metadata, String fileFormat) {
+    static String dataToWriteInZip(String metadata, String fileFormat) {
         if (StringUtils.equals(fileFormat, Constants.TTL_FILE)) {
             return TurtleResponseParser.generateTurtle(metadata);
         }
@@ -60,8 +441,14 @@ public class ZipUtility {
      *
      * @return String
      */
-    private static String getEntryName(Record recordVal, String fileExtension) {
-        String id = recordVal.getHeader().getIdentifier();
+    static String getEntryName(Record recordVal, String fileExtension) {
+        return getEntryName(recordVal.getHeader().getIdentifier(), fileExtension);
+    }
+
+    /**
+     * @return the name of the entry of the record with the identifier
+     */
+    static String getEntryName(String id, String fileExtension) {
         if (StringUtils.equals(fileExtension, Constants.TTL_FILE)) {
             return StringUtils.substringAfterLast(id, "/") + Constants.TTL_EXTENSION;
         }
@@ -81,36 +468,35 @@ public class ZipUtility {
     }
 
     /**
-     * creates the md5Sum for the file when source and destination folder are different
+     * creates the md5Sum for the file when source and destination folder are different, and the sha256 file
+     * when it is enabled. Zips written with {@link #openZip(String, boolean, String)} have their checksum files
+     *
+     * @return true if the checksum files are written
      */
-    public static void createMD5SumFile(String sourceFolder, String destinationFolder) {
-        try (BufferedWriter out = new BufferedWriter(new FileWriter(destinationFolder + Constants.MD5_EXTENSION))) {
-            String checksum = getMD5Sum(sourceFolder);
-            out.write(checksum + "\n");
+    public static boolean createMD5SumFile(String sourceFolder, String destinationFolder) {
+        try {
+            return ZipChecksums.read(Paths.get(sourceFolder)).write(destinationFolder);
         } catch (IOException e) {
-            LOG.error("Error creating MD5Sum file", e);
+            LOG.error("Unable to process file for MD5", e);
+            return false;
         }
     }
 
-    private static String getMD5Sum(String file) {
-        MessageDigest digest;
-        String checksum = null;
-        try (InputStream is = new FileInputStream(new File(file))) {
-            digest = MessageDigest.getInstance("MD5");
-            byte[] buffer = new byte[1024];
-            int read = 0;
-            while ((read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            checksum = bigInt.toString(16);
+    /**
+     * writes the md5Sum file of the file with the md5 that was calculated while the file was written
+     */
+    static boolean writeMD5SumFile(String filename, byte[] md5sum) {
+        return writeMD5SumFile(filename, new BigInteger(1, md5sum).toString(16));
+    }
+
+    private static boolean writeMD5SumFile(String filename, String checksum) {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(filename + Constants.MD5_EXTENSION))) {
+            out.write(checksum + "\n");
+            return true;
         } catch (IOException e) {
-            LOG.error("Unable to process file for MD5", e);
-        } catch (NoSuchAlgorithmException e) {
-            LOG.error("Error while generating MD5", e);
+            LOG.error("Error creating MD5Sum file", e);
+            return false;
         }
-        return checksum;
     }
 
     /**
@@ -128,8 +514,12 @@ public class ZipUtility {
         return 0;
     }
 
+    /**
+     * @param existedBefore true if the zip existed before the current harvest. A harvested zip is a new file that
+     *                      replaces the zip of the last harvest, so its creation date is always in the current harvest
+     */
     public static ZipFileStatus generateFileStatus(String fileName, String lastHarvestDate,
-        Date currentHarvestStartTime) {
+        Date currentHarvestStartTime, boolean existedBefore) {
         File file = new File(fileName);
         Path filePath = file.toPath();
         BasicFileAttributes attributes = getBasicFileAttributes(filePath);
@@ -140,7 +530,7 @@ public class ZipUtility {
                 Date modifiedDate = new Date(
                     attributes.lastModifiedTime().to(TimeUnit.MILLISECONDS));
                 return getFileStatusValues(creationDate, modifiedDate, getDate(lastHarvestDate),
-                    currentHarvestStartTime);
+                    currentHarvestStartTime, existedBefore);
             }
             LOG.error("Unable to calculate file download status for {}" , fileName);
         }
@@ -170,10 +560,9 @@ public class ZipUtility {
 
 
     private static ZipFileStatus getFileStatusValues(Date creationDate, Date modifiedDate, Date lastHarvestedOn,
-        Date currentHarvestStartTime) {
-
+        Date currentHarvestStartTime, boolean existedBefore) {
         //Nothing was harvested before and file is created in the current harvest
-        if (lastHarvestedOn == null && creationDate.after(currentHarvestStartTime)) {
+        if (lastHarvestedOn == null && !existedBefore && creationDate.after(currentHarvestStartTime)) {
            return ZipFileStatus.NEW;
         } else if (lastHarvestedOn != null) {
             //file is modified on or before the lastHarvest
@@ -181,7 +570,7 @@ public class ZipUtility {
                 return ZipFileStatus.UNCHANGED;
             }
             //file is created in current harvest
-            if (creationDate.after(currentHarvestStartTime) || creationDate.equals(currentHarvestStartTime)) {
+            if (!existedBefore && !creationDate.before(currentHarvestStartTime)) {
                 return  ZipFileStatus.REHARVESTED;
             }
         }